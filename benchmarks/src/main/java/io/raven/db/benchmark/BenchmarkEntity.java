@@ -0,0 +1,39 @@
+package io.raven.db.benchmark;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.GeneratedValue;
+import javax.persistence.GenerationType;
+import javax.persistence.Id;
+import javax.persistence.Table;
+import java.math.BigDecimal;
+
+@Entity
+@Table(name = "benchmark_entity")
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class BenchmarkEntity {
+
+  @Id
+  @GeneratedValue(strategy = GenerationType.IDENTITY)
+  private long id;
+
+  @Column(name = "ext_id")
+  private String externalId;
+
+  @Column(name = "text", nullable = false)
+  private String text;
+
+  @Column(name = "amount")
+  private BigDecimal amount;
+
+  @Column(name = "bucket", nullable = false)
+  private int bucket;
+}
@@ -0,0 +1,42 @@
+package io.raven.db.benchmark;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.Arrays;
+
+/**
+ * Runs the benchmarks once per thread count with the gc profiler enabled and writes JSON results per run, so
+ * throughput and allocation rate (gc.alloc.rate.norm) can be diffed between versions.
+ * <p>
+ * System properties: {@code threads} (comma separated thread counts, default 1,4,8) and {@code resultDir} (default
+ * target). Any regular JMH command line options are passed through.
+ */
+public class BenchmarkRunner {
+
+  public static void main(String[] args) throws RunnerException, CommandLineOptionException {
+    CommandLineOptions commandLineOptions = new CommandLineOptions(args);
+    String resultDir = System.getProperty("resultDir", "target");
+    int[] threadCounts = Arrays.stream(System.getProperty("threads", "1,4,8").split(","))
+        .map(String::trim)
+        .mapToInt(Integer::parseInt)
+        .toArray();
+    for (int threads : threadCounts) {
+      OptionsBuilder options = new OptionsBuilder();
+      options.parent(commandLineOptions);
+      if (commandLineOptions.getIncludes().isEmpty()) {
+        options.include(EntityDaoBenchmark.class.getSimpleName());
+      }
+      options.threads(threads)
+          .addProfiler(GCProfiler.class)
+          .resultFormat(ResultFormatType.JSON)
+          .result(resultDir + "/jmh-result-t" + threads + ".json");
+      new Runner(options.build()).run();
+    }
+  }
+}
@@ -0,0 +1,233 @@
+package io.raven.db.benchmark;
+
+import io.raven.db.EntityDao;
+import io.raven.db.UniMatrix;
+import io.raven.db.UniMatrixConfig;
+import io.raven.db.UniMatrixException;
+import org.hibernate.cfg.AvailableSettings;
+import org.hibernate.exception.LockAcquisitionException;
+
+import javax.persistence.LockTimeoutException;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Multi-threaded load harness for the locking paths ({@code updateInLock}, {@code getTransactionContext} and
+ * {@code getBatchTransactionContext}) against in-memory H2 with a Zipfian hot-key skew. Reports latency percentiles,
+ * the lock failure rate, pool wait time and throughput.
+ * <p>
+ * Configured through system properties:
+ * <ul>
+ *   <li>{@code mode} updateInLock | transactionContext | batchTransactionContext (default updateInLock)</li>
+ *   <li>{@code threads} worker threads (default 16)</li>
+ *   <li>{@code poolSize} maximum connection pool size (default 8)</li>
+ *   <li>{@code keys} number of rows the workers contend on (default 1000)</li>
+ *   <li>{@code skew} Zipfian exponent, 0 is uniform (default 0.99)</li>
+ *   <li>{@code batchSize} keys per batch transaction (default 10)</li>
+ *   <li>{@code warmup} and {@code duration} in seconds (default 5 and 30)</li>
+ * </ul>
+ * {@code java -Dmode=batchTransactionContext -cp benchmarks/target/benchmarks.jar io.raven.db.benchmark.ContentionHarness}
+ */
+public class ContentionHarness {
+
+  private final String mode = System.getProperty("mode", "updateInLock");
+  private final int threads = Integer.getInteger("threads", 16);
+  private final int poolSize = Integer.getInteger("poolSize", 8);
+  private final int keys = Integer.getInteger("keys", 1000);
+  private final double skew = Double.parseDouble(System.getProperty("skew", "0.99"));
+  private final int batchSize = Integer.getInteger("batchSize", 10);
+  private final int warmup = Integer.getInteger("warmup", 5);
+  private final int duration = Integer.getInteger("duration", 30);
+
+  private final ZipfianKeys zipfianKeys = new ZipfianKeys(keys, skew);
+  private EntityDao<BenchmarkEntity> dao;
+  private long minId;
+
+  public static void main(String[] args) throws Exception {
+    new ContentionHarness().run();
+  }
+
+  private void run() throws Exception {
+    UniMatrixConfig config = UniMatrixConfig.builder()
+        .createSchema(true)
+        .driverClass("org.h2.Driver")
+        .dialect("org.hibernate.dialect.H2Dialect")
+        .url("jdbc:h2:mem:contention")
+        .maxPoolSize(poolSize)
+        .properties(Map.of(AvailableSettings.AUTO_SESSION_EVENTS_LISTENER, PoolWaitRecorder.class.getName()))
+        .build();
+    UniMatrix uniMatrix = UniMatrix.builder()
+        .uniMatrixConfig(config)
+        .entity(BenchmarkEntity.class)
+        .build();
+    try {
+      dao = new EntityDao<>(uniMatrix.getSessionFactory(), BenchmarkEntity.class);
+      populate();
+      drive(warmup);
+      PoolWaitRecorder.reset();
+      Result result = drive(duration);
+      report(result);
+    } finally {
+      uniMatrix.close();
+    }
+  }
+
+  private void populate() throws UniMatrixException {
+    List<BenchmarkEntity> entities = new ArrayList<>(keys);
+    for (int i = 0; i < keys; i++) {
+      entities.add(BenchmarkEntity.builder()
+          .externalId("ext-" + i)
+          .text("text-" + i)
+          .amount(BigDecimal.ZERO)
+          .bucket(i)
+          .build());
+    }
+    minId = dao.save(entities).stream().mapToLong(BenchmarkEntity::getId).min().orElse(0);
+  }
+
+  private Result drive(int seconds) throws Exception {
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    long stopAt = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+    try {
+      List<Future<Result>> futures = new ArrayList<>();
+      for (int i = 0; i < threads; i++) {
+        futures.add(executor.submit(() -> work(stopAt)));
+      }
+      Result total = new Result();
+      for (Future<Result> future : futures) {
+        total.merge(future.get());
+      }
+      return total;
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  private Result work(long stopAt) {
+    Result result = new Result();
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+    while (System.nanoTime() < stopAt) {
+      long start = System.nanoTime();
+      try {
+        execute(random);
+        result.successes++;
+      } catch (Exception e) {
+        if (isLockFailure(e)) {
+          result.lockFailures++;
+        } else {
+          result.otherFailures++;
+        }
+      }
+      result.record(System.nanoTime() - start);
+    }
+    return result;
+  }
+
+  private void execute(ThreadLocalRandom random) throws UniMatrixException {
+    switch (mode) {
+      case "updateInLock":
+        dao.updateInLock(nextKey(random), entity -> {
+          entity.ifPresent(e -> e.setAmount(e.getAmount().add(BigDecimal.ONE)));
+          return entity;
+        });
+        break;
+      case "transactionContext":
+        dao.getTransactionContext(nextKey(random))
+            .mutate(e -> e.setAmount(e.getAmount().add(BigDecimal.ONE)))
+            .execute();
+        break;
+      case "batchTransactionContext":
+        long[] ids = new long[batchSize];
+        for (int i = 0; i < batchSize; i++) {
+          ids[i] = nextKey(random);
+        }
+        dao.getBatchTransactionContext(ids)
+            .mutate(entities -> entities.forEach(e -> e.setAmount(e.getAmount().add(BigDecimal.ONE))))
+            .execute();
+        break;
+      default:
+        throw new IllegalArgumentException("Unknown mode: " + mode);
+    }
+  }
+
+  private long nextKey(ThreadLocalRandom random) {
+    return minId + zipfianKeys.next(random);
+  }
+
+  private static boolean isLockFailure(Throwable e) {
+    for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+      if (cause instanceof LockAcquisitionException
+          || cause instanceof org.hibernate.PessimisticLockException
+          || cause instanceof javax.persistence.PessimisticLockException
+          || cause instanceof LockTimeoutException) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private void report(Result result) {
+    long[] latencies = result.latencies();
+    Arrays.sort(latencies);
+    long operations = result.successes + result.lockFailures + result.otherFailures;
+    long acquisitions = PoolWaitRecorder.acquisitions();
+    System.out.printf("mode=%s threads=%d poolSize=%d keys=%d skew=%.2f batchSize=%d duration=%ds%n",
+        mode, threads, poolSize, keys, skew, batchSize, duration);
+    System.out.printf("throughput      %.1f ops/s (%.1f successful ops/s)%n",
+        operations / (double) duration, result.successes / (double) duration);
+    System.out.printf("latency p50     %.3f ms%n", percentile(latencies, 0.50));
+    System.out.printf("latency p99     %.3f ms%n", percentile(latencies, 0.99));
+    System.out.printf("latency p999    %.3f ms%n", percentile(latencies, 0.999));
+    System.out.printf("lock failures   %d (%.2f%%)%n", result.lockFailures,
+        operations == 0 ? 0 : 100.0 * result.lockFailures / operations);
+    System.out.printf("other failures  %d%n", result.otherFailures);
+    System.out.printf("pool wait       %.3f ms avg over %d acquisitions, %.1f ms total%n",
+        acquisitions == 0 ? 0 : PoolWaitRecorder.totalWaitNanos() / 1e6 / acquisitions, acquisitions,
+        PoolWaitRecorder.totalWaitNanos() / 1e6);
+  }
+
+  private static double percentile(long[] sorted, double quantile) {
+    if (sorted.length == 0) {
+      return 0;
+    }
+    int index = (int) Math.ceil(quantile * sorted.length) - 1;
+    return sorted[Math.max(0, Math.min(sorted.length - 1, index))] / 1e6;
+  }
+
+  private static final class Result {
+
+    private long successes;
+    private long lockFailures;
+    private long otherFailures;
+    private long[] latencies = new long[1024];
+    private int count;
+
+    void record(long nanos) {
+      if (count == latencies.length) {
+        latencies = Arrays.copyOf(latencies, count * 2);
+      }
+      latencies[count++] = nanos;
+    }
+
+    void merge(Result other) {
+      successes += other.successes;
+      lockFailures += other.lockFailures;
+      otherFailures += other.otherFailures;
+      for (int i = 0; i < other.count; i++) {
+        record(other.latencies[i]);
+      }
+    }
+
+    long[] latencies() {
+      return Arrays.copyOf(latencies, count);
+    }
+  }
+}
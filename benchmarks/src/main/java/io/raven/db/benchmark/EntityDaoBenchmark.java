@@ -0,0 +1,199 @@
+package io.raven.db.benchmark;
+
+import io.raven.db.EntityDao;
+import io.raven.db.TransactionManager;
+import io.raven.db.UniMatrix;
+import io.raven.db.UniMatrixConfig;
+import io.raven.db.UniMatrixException;
+import org.hibernate.LockMode;
+import org.hibernate.SessionFactory;
+import org.hibernate.criterion.DetachedCriteria;
+import org.hibernate.criterion.Restrictions;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of the {@link EntityDao} hot paths against in-memory H2. Run through {@link BenchmarkRunner} to get the
+ * gc allocation rate alongside throughput.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EntityDaoBenchmark {
+
+  private static final int BATCH_SIZE = 100;
+  private static final int PAGE_SIZE = 50;
+  private static final int BUCKETS = 100;
+
+  @Param({"1000", "50000"})
+  private int rows;
+
+  private UniMatrix uniMatrix;
+  private EntityDao<BenchmarkEntity> dao;
+  private long minId;
+
+  @Setup(Level.Trial)
+  public void setup() throws UniMatrixException {
+    UniMatrixConfig config = UniMatrixConfig.builder()
+        .createSchema(true)
+        .driverClass("org.h2.Driver")
+        .dialect("org.hibernate.dialect.H2Dialect")
+        .url("jdbc:h2:mem:benchmark_" + System.nanoTime())
+        .maxPoolSize(Runtime.getRuntime().availableProcessors() * 2)
+        .build();
+    uniMatrix = UniMatrix.builder()
+        .uniMatrixConfig(config)
+        .entity(BenchmarkEntity.class)
+        .build();
+    dao = new EntityDao<>(uniMatrix.getSessionFactory(), BenchmarkEntity.class);
+    minId = Long.MAX_VALUE;
+    for (int offset = 0; offset < rows; offset += 1000) {
+      List<BenchmarkEntity> chunk = new ArrayList<>();
+      for (int i = offset; i < Math.min(rows, offset + 1000); i++) {
+        chunk.add(newEntity(i));
+      }
+      for (BenchmarkEntity saved : dao.save(chunk)) {
+        minId = Math.min(minId, saved.getId());
+      }
+    }
+  }
+
+  @TearDown(Level.Trial)
+  public void teardown() {
+    uniMatrix.close();
+  }
+
+  private static BenchmarkEntity newEntity(int i) {
+    return BenchmarkEntity.builder()
+        .externalId("ext-" + i)
+        .text("text-" + i)
+        .amount(BigDecimal.valueOf(i))
+        .bucket(i % BUCKETS)
+        .build();
+  }
+
+  private long randomId() {
+    return minId + ThreadLocalRandom.current().nextInt(rows);
+  }
+
+  private DetachedCriteria bucketCriteria() {
+    return DetachedCriteria.forClass(BenchmarkEntity.class)
+        .add(Restrictions.eq("bucket", ThreadLocalRandom.current().nextInt(BUCKETS)));
+  }
+
+  @Benchmark
+  public Optional<BenchmarkEntity> get() throws UniMatrixException {
+    return dao.get(randomId());
+  }
+
+  /**
+   * The generic execution chain {@link #get()} used before the session passing path: transaction builder, thread bound
+   * session, capturing lambdas and a result handler. Compare gc.alloc.rate.norm of both.
+   */
+  @Benchmark
+  public Optional<BenchmarkEntity> getGeneric() throws UniMatrixException {
+    SessionFactory sessionFactory = uniMatrix.getSessionFactory();
+    return TransactionManager.newTransaction()
+        .readOnly(true)
+        .sessionFactory(sessionFactory)
+        .build()
+        .execute(id -> Optional.ofNullable(sessionFactory.getCurrentSession().get(BenchmarkEntity.class, id, LockMode.READ)),
+            randomId(), e -> e);
+  }
+
+  @Benchmark
+  public List<BenchmarkEntity> getMulti() throws UniMatrixException {
+    List<Long> ids = new ArrayList<>(BATCH_SIZE);
+    for (int i = 0; i < BATCH_SIZE; i++) {
+      ids.add(randomId());
+    }
+    return dao.get(ids);
+  }
+
+  @Benchmark
+  public List<BenchmarkEntity> getMultiPrimitive() throws UniMatrixException {
+    long[] ids = new long[BATCH_SIZE];
+    for (int i = 0; i < BATCH_SIZE; i++) {
+      ids[i] = randomId();
+    }
+    return dao.get(ids);
+  }
+
+  @Benchmark
+  public Optional<BenchmarkEntity> save() throws UniMatrixException {
+    return dao.save(newEntity(ThreadLocalRandom.current().nextInt()));
+  }
+
+  @Benchmark
+  public List<BenchmarkEntity> saveBatch() throws UniMatrixException {
+    List<BenchmarkEntity> entities = new ArrayList<>(BATCH_SIZE);
+    for (int i = 0; i < BATCH_SIZE; i++) {
+      entities.add(newEntity(i));
+    }
+    return dao.save(entities);
+  }
+
+  @Benchmark
+  public List<BenchmarkEntity> selectPaged() throws UniMatrixException {
+    return dao.select(bucketCriteria(), e -> e, PAGE_SIZE, ThreadLocalRandom.current().nextInt(Math.max(1, rows / BUCKETS)));
+  }
+
+  @Benchmark
+  public long count() throws UniMatrixException {
+    return dao.count(bucketCriteria());
+  }
+
+  @Benchmark
+  public boolean update() throws UniMatrixException {
+    return dao.update(randomId(), entity -> {
+      entity.ifPresent(e -> e.setText("updated"));
+      return entity;
+    });
+  }
+
+  @Benchmark
+  public void updateInLock(Blackhole blackhole) {
+    try {
+      blackhole.consume(dao.updateInLock(randomId(), entity -> {
+        entity.ifPresent(e -> e.setText("updated"));
+        return entity;
+      }));
+    } catch (UniMatrixException e) {
+      // Lock conflicts between benchmark threads are expected and measured by the contention harness
+      blackhole.consume(e);
+    }
+  }
+
+  @Benchmark
+  public void transactionContextExecute(Blackhole blackhole) {
+    try {
+      blackhole.consume(dao.getTransactionContext(randomId())
+          .mutate(parent -> parent.setAmount(parent.getAmount().add(BigDecimal.ONE)))
+          .execute());
+    } catch (RuntimeException e) {
+      blackhole.consume(e);
+    }
+  }
+}
@@ -0,0 +1,105 @@
+package io.raven.db.benchmark;
+
+import io.raven.db.EntityDao;
+import io.raven.db.UniMatrix;
+import io.raven.db.UniMatrixConfig;
+import io.raven.db.UniMatrixException;
+import org.hibernate.Session;
+import org.hibernate.Transaction;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of flushing one changed entity out of a session holding {@code loaded} managed entities. Without enhancement
+ * every flush compares the state of all of them; with inline dirty tracking only the changed one is checked. Compare
+ * the results of a plain and an enhanced build:
+ * <pre>
+ *   mvn -B -f benchmarks/pom.xml package &amp;&amp; java -jar benchmarks/target/benchmarks.jar FlushBenchmark
+ *   mvn -B -f benchmarks/pom.xml -Penhance package &amp;&amp; java -jar benchmarks/target/benchmarks.jar FlushBenchmark
+ * </pre>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FlushBenchmark {
+
+  @Param({"1000", "10000"})
+  private int loaded;
+
+  private UniMatrix uniMatrix;
+  private Session session;
+  private Transaction transaction;
+  private List<BenchmarkEntity> entities;
+  private int next;
+
+  @Setup(Level.Trial)
+  public void setup() throws UniMatrixException {
+    UniMatrixConfig config = UniMatrixConfig.builder()
+        .createSchema(true)
+        .driverClass("org.h2.Driver")
+        .dialect("org.hibernate.dialect.H2Dialect")
+        .url("jdbc:h2:mem:flush_benchmark_" + System.nanoTime())
+        .build();
+    uniMatrix = UniMatrix.builder()
+        .uniMatrixConfig(config)
+        .entity(BenchmarkEntity.class)
+        .build();
+    EntityDao<BenchmarkEntity> dao = new EntityDao<>(uniMatrix.getSessionFactory(), BenchmarkEntity.class);
+    for (int offset = 0; offset < loaded; offset += 1000) {
+      List<BenchmarkEntity> chunk = new ArrayList<>();
+      for (int i = offset; i < Math.min(loaded, offset + 1000); i++) {
+        chunk.add(BenchmarkEntity.builder()
+            .externalId("ext-" + i)
+            .text("text-" + i)
+            .amount(BigDecimal.valueOf(i))
+            .bucket(i % 100)
+            .build());
+      }
+      dao.save(chunk);
+    }
+  }
+
+  @Setup(Level.Iteration)
+  public void openSession() {
+    session = uniMatrix.getSessionFactory().openSession();
+    transaction = session.beginTransaction();
+    entities = session.createQuery("from BenchmarkEntity", BenchmarkEntity.class).getResultList();
+  }
+
+  @TearDown(Level.Iteration)
+  public void closeSession() {
+    transaction.rollback();
+    session.close();
+  }
+
+  @TearDown(Level.Trial)
+  public void teardown() {
+    uniMatrix.close();
+  }
+
+  @Benchmark
+  public void flushOneChange() {
+    next++;
+    entities.get(next % entities.size()).setText("flushed-" + next);
+    session.flush();
+  }
+}
@@ -0,0 +1,41 @@
+package io.raven.db.benchmark;
+
+import org.hibernate.BaseSessionEventListener;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Records the time sessions spend waiting for a pooled connection. Registered through
+ * {@code hibernate.session.events.auto}, which creates one instance per session.
+ */
+public class PoolWaitRecorder extends BaseSessionEventListener {
+
+  private static final LongAdder WAIT_NANOS = new LongAdder();
+  private static final LongAdder ACQUISITIONS = new LongAdder();
+
+  private long start;
+
+  @Override
+  public void jdbcConnectionAcquisitionStart() {
+    start = System.nanoTime();
+  }
+
+  @Override
+  public void jdbcConnectionAcquisitionEnd() {
+    WAIT_NANOS.add(System.nanoTime() - start);
+    ACQUISITIONS.increment();
+  }
+
+  static long totalWaitNanos() {
+    return WAIT_NANOS.sum();
+  }
+
+  static long acquisitions() {
+    return ACQUISITIONS.sum();
+  }
+
+  static void reset() {
+    WAIT_NANOS.reset();
+    ACQUISITIONS.reset();
+  }
+}
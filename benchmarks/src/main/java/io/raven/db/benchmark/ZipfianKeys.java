@@ -0,0 +1,30 @@
+package io.raven.db.benchmark;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Draws ranks in [0, n) following a Zipfian distribution with the given skew. Rank 0 is the hottest key; a skew of 0
+ * is uniform.
+ */
+public class ZipfianKeys {
+
+  private final double[] cumulative;
+
+  public ZipfianKeys(int n, double skew) {
+    cumulative = new double[n];
+    double sum = 0;
+    for (int i = 0; i < n; i++) {
+      sum += 1.0 / Math.pow(i + 1, skew);
+      cumulative[i] = sum;
+    }
+    for (int i = 0; i < n; i++) {
+      cumulative[i] /= sum;
+    }
+  }
+
+  public int next(Random random) {
+    int index = Arrays.binarySearch(cumulative, random.nextDouble());
+    return Math.min(index >= 0 ? index : -index - 1, cumulative.length - 1);
+  }
+}
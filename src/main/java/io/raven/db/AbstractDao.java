@@ -41,19 +41,27 @@ public abstract class AbstractDao<E> {
   }
 
   protected E persist(E entity) throws HibernateException {
-    if (currentSession().contains(entity)) {
-      currentSession().refresh(entity);
+    return persist(currentSession(), entity);
+  }
+
+  protected E persist(Session session, E entity) throws HibernateException {
+    if (session.contains(entity)) {
+      session.refresh(entity);
     }
-    currentSession().saveOrUpdate(requireNonNull(entity));
+    session.saveOrUpdate(requireNonNull(entity));
     return entity;
   }
 
   protected List<E> persist(List<E> entities) throws HibernateException {
+    return persist(currentSession(), entities);
+  }
+
+  protected List<E> persist(Session session, List<E> entities) throws HibernateException {
     for (E entity : entities) {
-      currentSession().persist(entity);
+      session.persist(entity);
     }
-    currentSession().flush();
-    currentSession().clear();
+    session.flush();
+    session.clear();
     return entities;
   }
 }
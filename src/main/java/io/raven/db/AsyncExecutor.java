@@ -0,0 +1,125 @@
+package io.raven.db;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bulkhead for the asynchronous dao methods. A fixed number of workers (by default one per pooled connection) run the
+ * transactions, so async callers never hold more transactions than the pool can serve. Work beyond that waits in a
+ * bounded queue; once the queue is full new work is rejected instead of piling up behind a saturated pool.
+ */
+@Slf4j
+public class AsyncExecutor {
+
+  private final ThreadPoolExecutor executor;
+  private final LongAdder submitted = new LongAdder();
+  private final LongAdder rejected = new LongAdder();
+  private final LongAdder completed = new LongAdder();
+  private final LongAdder failed = new LongAdder();
+
+  /**
+   * @param threads   Number of workers, each holds at most one transaction at a time
+   * @param queueSize Maximum number of queued tasks waiting for a worker
+   */
+  public AsyncExecutor(int threads, int queueSize) {
+    AtomicInteger count = new AtomicInteger();
+    this.executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+        new ArrayBlockingQueue<>(Math.max(1, queueSize)), runnable -> {
+      Thread thread = new Thread(runnable, "unimatrix-async-" + count.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    }, new ThreadPoolExecutor.AbortPolicy());
+    this.executor.allowCoreThreadTimeOut(true);
+  }
+
+  static AsyncExecutor create(UniMatrixConfig config) {
+    int threads = config.getAsyncThreads() > 0 ? config.getAsyncThreads() : config.getMaxPoolSize();
+    return new AsyncExecutor(threads, config.getAsyncQueueSize());
+  }
+
+  /**
+   * Runs the call on a worker. The returned future fails with a {@link RejectedExecutionException} when the queue is
+   * full, and with the exception or error thrown by the call otherwise.
+   */
+  public <T> CompletableFuture<T> submit(AsyncCall<T> call) {
+    CompletableFuture<T> future = new CompletableFuture<>();
+    try {
+      executor.execute(() -> {
+        try {
+          T result = call.call();
+          completed.increment();
+          future.complete(result);
+        } catch (Throwable t) {
+          // Errors too, the future would never complete otherwise
+          failed.increment();
+          future.completeExceptionally(t);
+        }
+      });
+      submitted.increment();
+    } catch (RejectedExecutionException e) {
+      rejected.increment();
+      log.debug("Rejected async task, {} tasks queued", executor.getQueue().size());
+      future.completeExceptionally(e);
+    }
+    return future;
+  }
+
+  public long getSubmitted() {
+    return submitted.sum();
+  }
+
+  public long getRejected() {
+    return rejected.sum();
+  }
+
+  public long getCompleted() {
+    return completed.sum();
+  }
+
+  public long getFailed() {
+    return failed.sum();
+  }
+
+  public int getQueueDepth() {
+    return executor.getQueue().size();
+  }
+
+  public int getActive() {
+    return executor.getActiveCount();
+  }
+
+  public int getThreads() {
+    return executor.getMaximumPoolSize();
+  }
+
+  void shutdown() {
+    executor.shutdown();
+  }
+
+  /**
+   * Rejects new tasks and waits for the queued and running ones, tasks still running after the timeout are interrupted
+   *
+   * @return true if every task finished within the timeout
+   */
+  boolean shutdown(long timeout, TimeUnit unit) throws InterruptedException {
+    executor.shutdown();
+    if (executor.awaitTermination(timeout, unit)) {
+      return true;
+    }
+    log.warn("Interrupting {} async tasks still running after {} {}", executor.getActiveCount(), timeout, unit);
+    executor.shutdownNow();
+    return false;
+  }
+
+  @FunctionalInterface
+  public interface AsyncCall<T> {
+    T call() throws Exception;
+  }
+}
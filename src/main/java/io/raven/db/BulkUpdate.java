@@ -0,0 +1,274 @@
+package io.raven.db;
+
+import com.google.common.base.Preconditions;
+import lombok.extern.slf4j.Slf4j;
+import org.hibernate.criterion.DetachedCriteria;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Applies an updater to many rows in chunks, each chunk locked and committed in its own transaction, so a backfill
+ * never holds more than one chunk of row locks per worker and a bad row only fails its own chunk.
+ * <pre>
+ *   BulkUpdate.Report report = dao.bulkUpdate(criteria, order -&gt; order.setStatus(Status.ARCHIVED))
+ *       .chunkSize(200)
+ *       .parallelism(2)
+ *       .execute();
+ *   report.getFailedKeys();
+ * </pre>
+ * Keys are processed in ascending order. Rows are locked without waiting, so a chunk touching a row held by live
+ * traffic fails fast and is retried with the {@link RetryPolicy} backoff. Keys of chunks which still fail are reported
+ * instead of stopping the run. Rows deleted since the keys were selected are skipped.
+ */
+@Slf4j
+public class BulkUpdate<T> {
+
+  private static final int DEFAULT_CHUNK_SIZE = 500;
+
+  private final EntityDao<T> dao;
+  private final long[] ids;
+  private final DetachedCriteria criteria;
+  private final EntityDao.TransactionContext.Mutator<T> updater;
+  private int chunkSize = DEFAULT_CHUNK_SIZE;
+  private int parallelism = 1;
+  private RetryPolicy retryPolicy = RetryPolicy.builder().build();
+  private boolean isolateFailures;
+
+  BulkUpdate(EntityDao<T> dao, long[] ids, DetachedCriteria criteria, EntityDao.TransactionContext.Mutator<T> updater) {
+    Preconditions.checkArgument(ids != null || criteria != null, "Keys or criteria are required");
+    this.dao = dao;
+    this.ids = ids;
+    this.criteria = criteria;
+    this.updater = Preconditions.checkNotNull(updater, "updater");
+  }
+
+  public BulkUpdate<T> chunkSize(int chunkSize) {
+    Preconditions.checkArgument(chunkSize > 0, "Chunk size must be positive");
+    this.chunkSize = chunkSize;
+    return this;
+  }
+
+  /**
+   * Number of chunks processed concurrently. Each worker holds one transaction, keep it well below the pool size so
+   * live traffic still gets connections.
+   */
+  public BulkUpdate<T> parallelism(int parallelism) {
+    Preconditions.checkArgument(parallelism > 0, "Parallelism must be positive");
+    this.parallelism = parallelism;
+    return this;
+  }
+
+  /**
+   * Attempts and backoff for each chunk
+   */
+  public BulkUpdate<T> retryPolicy(RetryPolicy retryPolicy) {
+    this.retryPolicy = Preconditions.checkNotNull(retryPolicy, "retryPolicy");
+    return this;
+  }
+
+  /**
+   * Retries the keys of a chunk which exhausted its attempts one key at a time, so only the rows which fail on their
+   * own are reported.
+   */
+  public BulkUpdate<T> isolateFailures(boolean isolateFailures) {
+    this.isolateFailures = isolateFailures;
+    return this;
+  }
+
+  /**
+   * Runs all chunks and waits for them. Keys of criteria based updates are selected once, before the first chunk.
+   *
+   * @throws UniMatrixException when the keys can not be selected
+   */
+  public Report execute() throws UniMatrixException {
+    long start = System.nanoTime();
+    long[] keys = EntityDao.BatchTransactionContext.distinctSorted(ids != null ? ids : dao.selectIds(criteria));
+    List<long[]> chunks = new ArrayList<>();
+    for (int from = 0; from < keys.length; from += chunkSize) {
+      chunks.add(Arrays.copyOfRange(keys, from, Math.min(keys.length, from + chunkSize)));
+    }
+    Report report = new Report(keys.length, chunks.size());
+    if (parallelism == 1 || chunks.size() <= 1) {
+      chunks.forEach(chunk -> process(chunk, report));
+    } else {
+      runParallel(chunks, report);
+    }
+    report.elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    log.debug("Bulk update of {} {} keys: {}", keys.length, dao.getMetadata().getEntityClass().getSimpleName(), report);
+    return report;
+  }
+
+  private void runParallel(List<long[]> chunks, Report report) throws UniMatrixException {
+    AtomicInteger count = new AtomicInteger();
+    ExecutorService executor = Executors.newFixedThreadPool(Math.min(parallelism, chunks.size()), runnable -> {
+      Thread thread = new Thread(runnable, "unimatrix-bulk-" + count.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    });
+    try {
+      List<Future<?>> futures = new ArrayList<>(chunks.size());
+      for (long[] chunk : chunks) {
+        futures.add(executor.submit(() -> process(chunk, report)));
+      }
+      for (Future<?> future : futures) {
+        future.get();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw UniMatrixException.from()
+          .exception(e)
+          .build();
+    } catch (ExecutionException e) {
+      throw UniMatrixException.from()
+          .exception(e)
+          .build();
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  private void process(long[] chunk, Report report) {
+    RuntimeException error = attempt(chunk, report);
+    if (error == null) {
+      return;
+    }
+    if (!isolateFailures || chunk.length == 1) {
+      report.fail(chunk, error);
+      return;
+    }
+    log.debug("Chunk of {} keys failed, retrying the keys one by one", chunk.length, error);
+    for (long key : chunk) {
+      long[] single = {key};
+      RuntimeException keyError = attempt(single, report);
+      if (keyError != null) {
+        report.fail(single, keyError);
+      }
+    }
+  }
+
+  /**
+   * @return Error of the last attempt, null when the chunk was committed
+   */
+  private RuntimeException attempt(long[] chunk, Report report) {
+    for (int attempt = 1; ; attempt++) {
+      try {
+        List<T> updated = dao.getExistingBatchTransactionContext(chunk)
+            .mutate(entities -> entities.forEach(updater::mutator))
+            .execute();
+        report.updated.add(updated.size());
+        return null;
+      } catch (RuntimeException e) {
+        if (!retryPolicy.canRetry(attempt) || Thread.currentThread().isInterrupted()) {
+          return e;
+        }
+        log.debug("Chunk starting at {} failed on attempt {}", chunk[0], attempt, e);
+        report.retries.increment();
+      }
+      try {
+        retryPolicy.pause(attempt);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return new UnimatrixRuntimeException(e);
+      }
+    }
+  }
+
+  /**
+   * Outcome of a bulk update. Keys which were neither updated nor failed no longer existed.
+   */
+  public static final class Report {
+
+    private final int total;
+    private final int chunks;
+    private final LongAdder updated = new LongAdder();
+    private final LongAdder retries = new LongAdder();
+    private final List<Long> failedKeys = Collections.synchronizedList(new ArrayList<>());
+    private final List<Exception> errors = Collections.synchronizedList(new ArrayList<>());
+    private long elapsed;
+
+    private Report(int total, int chunks) {
+      this.total = total;
+      this.chunks = chunks;
+    }
+
+    private void fail(long[] keys, Exception error) {
+      synchronized (failedKeys) {
+        for (long key : keys) {
+          failedKeys.add(key);
+        }
+      }
+      errors.add(error);
+    }
+
+    /**
+     * @return Number of distinct keys processed
+     */
+    public int getTotal() {
+      return total;
+    }
+
+    public int getChunks() {
+      return chunks;
+    }
+
+    public long getUpdated() {
+      return updated.sum();
+    }
+
+    public long getMissing() {
+      return total - getUpdated() - failedKeys.size();
+    }
+
+    /**
+     * @return Number of failed attempts which were retried
+     */
+    public long getRetries() {
+      return retries.sum();
+    }
+
+    /**
+     * @return Keys of the chunks which failed after all attempts, in ascending order
+     */
+    public long[] getFailedKeys() {
+      long[] keys;
+      synchronized (failedKeys) {
+        keys = failedKeys.stream().mapToLong(Long::longValue).toArray();
+      }
+      Arrays.sort(keys);
+      return keys;
+    }
+
+    /**
+     * @return Error of the last attempt of every failed chunk (or key, with isolated failures)
+     */
+    public List<Exception> getErrors() {
+      synchronized (errors) {
+        return List.copyOf(errors);
+      }
+    }
+
+    public boolean isSuccess() {
+      return failedKeys.isEmpty();
+    }
+
+    public long getElapsedMillis() {
+      return elapsed;
+    }
+
+    @Override
+    public String toString() {
+      return String.format("%d keys in %d chunks, %d updated, %d missing, %d failed, %d retries, %dms", total, chunks,
+          getUpdated(), getMissing(), failedKeys.size(), getRetries(), elapsed);
+    }
+  }
+}
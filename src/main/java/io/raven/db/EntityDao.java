@@ -3,55 +3,180 @@ package io.raven.db;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Strings;
 import com.google.common.collect.Lists;
+import com.google.common.primitives.Longs;
 import lombok.Builder;
 import lombok.Data;
 import lombok.Getter;
 import lombok.extern.slf4j.Slf4j;
-import org.apache.commons.lang3.reflect.FieldUtils;
 import org.hibernate.*;
 import org.hibernate.criterion.DetachedCriteria;
+import org.hibernate.engine.spi.EntityEntry;
+import org.hibernate.engine.spi.SelfDirtinessTracker;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.engine.spi.SessionImplementor;
+import org.hibernate.persister.entity.EntityPersister;
 import org.hibernate.criterion.Projections;
+import org.hibernate.criterion.Restrictions;
 import org.hibernate.query.Query;
 
-import javax.persistence.Id;
+import javax.persistence.OptimisticLockException;
+import java.io.Serializable;
 import java.lang.reflect.Field;
 import java.math.BigDecimal;
+import java.sql.Connection;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.Savepoint;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Flow;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 import java.util.function.*;
+import java.util.stream.Collectors;
 
 @Slf4j
 public class EntityDao<T> {
 
+  private static final int DEFAULT_FETCH_SIZE = 100;
+  private static final int KEY_CHUNK_SIZE = 1000;
+
   private final Class<T> entityClass;
 
   @Getter
   private final EntityInternalDao dao;
 
   @Getter
-  private final Field keyField;
+  private final EntityMetadata<T> metadata;
+
+  @Getter
+  private final int queryTimeout;
+
+  @Getter
+  private final int timeout;
+
+  @Getter
+  private final UpdateMode updateMode;
+
+  @Getter
+  private final TransactionManager.HandlerMode handlerMode;
+
+  /*
+   * Reused for every call of the hottest read paths so that they do not allocate a new function per call
+   */
+  private final TransactionManager.SessionFunction<Serializable, T> findById;
+  private final TransactionManager.SessionFunction<DetachedCriteria, Long> rowCount;
+  private final TransactionManager.SessionFunction<Serializable, Boolean> idExists;
+  private final TransactionManager.Reader reader;
+
+  /**
+   * Short circuits lookups of ids which were never inserted, null unless registered for the entity
+   */
+  private final NegativeLookupFilter lookupFilter;
 
   public EntityDao(SessionFactory sessionFactory, Class<T> entityClass) {
     this.dao = new EntityInternalDao(sessionFactory, entityClass);
     this.entityClass = entityClass;
+    this.queryTimeout = 0;
+    this.timeout = 0;
+    this.updateMode = UpdateMode.FULL;
+    this.handlerMode = null;
+    this.findById = (session, id) -> session.get(entityClass, id, LockMode.READ);
+    this.rowCount = (session, criteria) -> (Long) criteria.getExecutableCriteria(session)
+        .setProjection(Projections.rowCount())
+        .uniqueResult();
+    this.idExists = (session, id) -> DetachedCriteria.forClass(entityClass)
+        .getExecutableCriteria(session)
+        .add(Restrictions.idEq(id))
+        .setProjection(Projections.id())
+        .setMaxResults(1)
+        .uniqueResult() != null;
+
+    this.metadata = EntityMetadata.of(entityClass);
+    this.lookupFilter = UniMatrix.lookupFilter(sessionFactory, entityClass);
+    this.reader = new TransactionManager.Reader(sessionFactory, queryTimeout, timeout);
+  }
 
-    Field[] fields = FieldUtils.getFieldsWithAnnotation(entityClass, Id.class);
-    Preconditions.checkArgument(fields.length != 0, "At least one field needs to be sharding keys");
-    Preconditions.checkArgument(fields.length == 1, "Only one field can be sharding keys");
-    this.keyField = fields[0];
+  private EntityDao(EntityDao<T> source, int queryTimeout, int timeout, UpdateMode updateMode,
+                    TransactionManager.HandlerMode handlerMode) {
+    this.dao = source.dao;
+    this.entityClass = source.entityClass;
+    this.metadata = source.metadata;
+    this.findById = source.findById;
+    this.rowCount = source.rowCount;
+    this.idExists = source.idExists;
+    this.lookupFilter = source.lookupFilter;
+    this.queryTimeout = queryTimeout;
+    this.timeout = timeout;
+    this.updateMode = updateMode;
+    this.handlerMode = handlerMode;
+    this.reader = new TransactionManager.Reader(source.dao.sessionFactory, queryTimeout, timeout);
   }
 
-  public Optional<T> get(Long ids) throws UniMatrixException {
-    return get(ids, e -> e);
+  /**
+   * @return The {@link javax.persistence.Id} field, null for {@link javax.persistence.IdClass} composites
+   */
+  public Field getKeyField() {
+    return metadata.getIdField();
   }
 
-  public <U> Optional<U> get(Long ids, Function<Optional<T>, Optional<U>> handler) throws UniMatrixException {
+  /**
+   * Per call timeout override. Non positive values fall back to the configured defaults.
+   *
+   * @param queryTimeout Statement timeout in milliseconds, enforced by JDBC in whole seconds (see
+   *                     {@link TransactionManager#TransactionManager(SessionFactory, boolean, int, int, int)})
+   * @param timeout      Transaction deadline in milliseconds, the connection wait is bounded by the pool's
+   *                     {@code connectionTimeout} instead
+   * @return Dao sharing this dao's state whose transactions use the given timeouts
+   */
+  public EntityDao<T> withTimeout(int queryTimeout, int timeout) {
+    return new EntityDao<>(this, queryTimeout, timeout, updateMode, handlerMode);
+  }
+
+  /**
+   * @return Dao sharing this dao's state whose {@code update} and {@code updateInLock} write the entity in the given mode
+   * @throws IllegalArgumentException for {@link UpdateMode#DIFF} when the entity does not use dynamic update
+   */
+  public EntityDao<T> withUpdateMode(UpdateMode updateMode) {
+    Preconditions.checkArgument(updateMode != UpdateMode.DIFF || dao.isDynamicUpdate(),
+        "%s needs @DynamicUpdate to update in DIFF mode", entityClass.getSimpleName());
+    return new EntityDao<>(this, queryTimeout, timeout, updateMode, handlerMode);
+  }
+
+  /**
+   * @return Dao sharing this dao's state whose result handlers run in the given mode, overriding the configured one.
+   * With {@link TransactionManager.HandlerMode#AFTER_RELEASE} handlers run on detached entities after the connection
+   * was returned to the pool.
+   */
+  public EntityDao<T> withHandlerMode(TransactionManager.HandlerMode handlerMode) {
+    return new EntityDao<>(this, queryTimeout, timeout, updateMode, handlerMode);
+  }
+
+  private TransactionManager newTransaction(boolean readOnly) {
     return TransactionManager.newTransaction()
-        .readOnly(true)
         .sessionFactory(dao.sessionFactory)
-        .build()
-        .execute(dao::get, ids, handler);
+        .readOnly(readOnly)
+        .queryTimeout(queryTimeout)
+        .timeout(timeout)
+        .handlerMode(handlerMode)
+        .build();
+  }
+
+  public Optional<T> get(Long ids) throws UniMatrixException {
+    return find(ids);
+  }
+
+  public <U> Optional<U> get(Long ids, Function<Optional<T>, Optional<U>> handler) throws UniMatrixException {
+    return newTransaction(true).executeInSession(dao::get, ids, handler);
   }
 
   public List<T> get(List<Long> ids) throws UniMatrixException {
@@ -59,15 +184,110 @@ public class EntityDao<T> {
   }
 
   public <U> List<U> get(List<Long> ids, Function<List<T>, List<U>> handler) throws UniMatrixException {
-    return TransactionManager.newTransaction()
-        .readOnly(true)
-        .sessionFactory(dao.sessionFactory)
-        .build()
-        .execute(dao::get, ids, handler);
+    return newTransaction(true).executeInSession(dao::get, ids, handler);
+  }
+
+  /**
+   * Primitive key variant of {@link #get(List)}. Keys are only boxed at the Hibernate boundary.
+   */
+  public List<T> get(long[] ids) throws UniMatrixException {
+    return get(ids, e -> e);
+  }
+
+  public <U> List<U> get(long[] ids, Function<List<T>, List<U>> handler) throws UniMatrixException {
+    return newTransaction(true).executeInSession(dao::get, Longs.asList(ids), handler);
+  }
+
+  /**
+   * Generic key variant of {@link #get(Long)} for String, UUID, {@link javax.persistence.EmbeddedId} and
+   * {@link javax.persistence.IdClass} keys. The key must be an instance of the entity's id type, it is only checked at
+   * runtime, which is why the long id methods do not share this name.
+   */
+  public Optional<T> getByKey(Object key) throws UniMatrixException {
+    return find(metadata.toKey(key));
+  }
+
+  private Optional<T> find(Serializable key) throws UniMatrixException {
+    if (isFilteredOut(key)) {
+      return Optional.empty();
+    }
+    T entity = reader.execute(findById, key);
+    if (lookupFilter != null) {
+      lookupFilter.recordLookup(entity != null);
+    }
+    return Optional.ofNullable(entity);
+  }
+
+  private boolean isFilteredOut(Serializable key) {
+    return lookupFilter != null && key instanceof Long id && !lookupFilter.mightContain(id);
   }
 
+  public List<T> getByKeys(Collection<?> keys) throws UniMatrixException {
+    return newTransaction(true).executeInSession(dao::get, toKeys(keys), e -> e);
+  }
+
+  /**
+   * Selects only the id, the row is not hydrated
+   */
   public boolean exists(Long id) throws UniMatrixException {
-    return get(id).isPresent();
+    return existsImpl(id);
+  }
+
+  public boolean existsByKey(Object key) throws UniMatrixException {
+    return existsImpl(metadata.toKey(key));
+  }
+
+  private boolean existsImpl(Serializable key) throws UniMatrixException {
+    if (isFilteredOut(key)) {
+      return false;
+    }
+    boolean exists = reader.execute(idExists, key);
+    if (lookupFilter != null) {
+      lookupFilter.recordLookup(exists);
+    }
+    return exists;
+  }
+
+  /**
+   * Looks up which of the ids exist with id only queries of at most {@value #KEY_CHUNK_SIZE} keys, all in one read only
+   * transaction.
+   *
+   * @return Bit {@code i} is set when {@code ids[i]} exists
+   */
+  public BitSet existsAll(long[] ids) throws UniMatrixException {
+    Preconditions.checkState(metadata.isLongId(), "%s does not have a long id", entityClass.getSimpleName());
+    long[] present = newTransaction(true).executeInSession(this::presentIds,
+        BatchTransactionContext.distinctSorted(ids));
+    BitSet result = new BitSet(ids.length);
+    for (int i = 0; i < ids.length; i++) {
+      if (Arrays.binarySearch(present, ids[i]) >= 0) {
+        result.set(i);
+      }
+    }
+    return result;
+  }
+
+  private long[] presentIds(Session session, long[] sortedIds) {
+    long[] present = new long[sortedIds.length];
+    int size = 0;
+    for (int from = 0; from < sortedIds.length; from += KEY_CHUNK_SIZE) {
+      List<Number> ids = ids(DetachedCriteria.forClass(entityClass)
+          .getExecutableCriteria(session)
+          .add(Restrictions.in(metadata.getIdName(),
+              Longs.asList(Arrays.copyOfRange(sortedIds, from, Math.min(sortedIds.length, from + KEY_CHUNK_SIZE))))));
+      for (Number id : ids) {
+        present[size++] = id.longValue();
+      }
+    }
+    long[] result = Arrays.copyOf(present, size);
+    Arrays.sort(result);
+    return result;
+  }
+
+  private List<Serializable> toKeys(Collection<?> keys) {
+    return keys.stream()
+        .map(metadata::toKey)
+        .collect(Collectors.toList());
   }
 
   public Optional<T> save(T entity) throws UniMatrixException {
@@ -75,12 +295,7 @@ public class EntityDao<T> {
   }
 
   public <U> U save(T entity, Function<T, U> handler) throws UniMatrixException {
-    return TransactionManager
-        .newTransaction()
-        .sessionFactory(dao.sessionFactory)
-        .readOnly(false)
-        .build()
-        .execute(dao::save, entity, handler);
+    return newTransaction(false).executeInSession(dao::save, entity, handler);
   }
 
   public List<T> save(List<T> entities) throws UniMatrixException {
@@ -88,35 +303,37 @@ public class EntityDao<T> {
   }
 
   public <U> List<U> save(List<T> entities, Function<List<T>, List<U>> handler) throws UniMatrixException {
-    return TransactionManager
-        .newTransaction()
-        .sessionFactory(dao.sessionFactory)
-        .readOnly(false)
-        .build()
-        .execute(dao::save, entities, handler);
+    return newTransaction(false).executeInSession(dao::save, entities, handler);
   }
 
   public boolean updateInLock(Long id, UnaryOperator<Optional<T>> updater) throws UniMatrixException {
     return updateImpl(id, dao::getLockedForWrite, updater);
   }
 
-  private boolean updateImpl(Long id, Function<Long, Optional<T>> getter, UnaryOperator<Optional<T>> updater) throws UniMatrixException {
+  public boolean updateInLockByKey(Object key, UnaryOperator<Optional<T>> updater) throws UniMatrixException {
+    return updateImpl(metadata.toKey(key), dao::getLockedForWrite, updater);
+  }
+
+  private boolean updateImpl(Serializable id, TransactionManager.SessionFunction<Serializable, Optional<T>> getter,
+                             UnaryOperator<Optional<T>> updater) throws UniMatrixException {
     try {
-      return TransactionManager.newTransaction()
-          .readOnly(false)
-          .sessionFactory(dao.sessionFactory)
-          .build()
-          .<Optional<T>, Long, Boolean>execute(getter, id, entity -> {
-            if (entity.isEmpty()) {
-              return false;
-            }
-            Optional<T> newEntity = updater.apply(entity);
-            if (newEntity.isEmpty()) {
-              return false;
-            }
-            newEntity.ifPresent(dao::update);
-            return true;
-          });
+      // The updater has to run inside the transaction whatever the handler mode
+      return newTransaction(false).executeInSession((session, key) -> {
+        Optional<T> entity = getter.apply(session, key);
+        if (entity.isEmpty()) {
+          return false;
+        }
+        Optional<T> newEntity = updater.apply(entity);
+        if (newEntity.isEmpty()) {
+          return false;
+        }
+        if (updateMode == UpdateMode.DIFF) {
+          dao.updateChanged(session, entity.get(), newEntity.get());
+        } else {
+          dao.update(session, newEntity.get());
+        }
+        return true;
+      }, id);
     } catch (Exception e) {
       throw UniMatrixException.from()
           .exception(e)
@@ -128,24 +345,167 @@ public class EntityDao<T> {
     return updateImpl(id, dao::get, updater);
   }
 
+  public boolean updateByKey(Object key, UnaryOperator<Optional<T>> updater) throws UniMatrixException {
+    return updateImpl(metadata.toKey(key), dao::get, updater);
+  }
+
+  /**
+   * Optimistic read-modify-write for {@link javax.persistence.Version} mapped entities. The entity is read without
+   * locks and written only if its version is unchanged; on a version conflict the whole read, updater and write is
+   * retried with the configured {@link UniMatrixConfig#getOptimisticRetry()} policy. The updater may run several
+   * times and must not have side effects outside the entity.
+   */
+  public boolean updateOptimistic(Long id, UnaryOperator<Optional<T>> updater) throws UniMatrixException {
+    return updateOptimistic(id, updater, UniMatrix.config(dao.sessionFactory).getOptimisticRetry());
+  }
+
+  public boolean updateOptimistic(Long id, UnaryOperator<Optional<T>> updater, RetryPolicy retryPolicy) throws UniMatrixException {
+    return updateOptimisticImpl(id, updater, retryPolicy);
+  }
+
+  public boolean updateOptimisticByKey(Object key, UnaryOperator<Optional<T>> updater) throws UniMatrixException {
+    return updateOptimisticImpl(metadata.toKey(key), updater, UniMatrix.config(dao.sessionFactory).getOptimisticRetry());
+  }
+
+  private boolean updateOptimisticImpl(Serializable id, UnaryOperator<Optional<T>> updater, RetryPolicy retryPolicy) throws UniMatrixException {
+    Preconditions.checkState(metadata.isVersioned(), "%s has no @Version attribute", entityClass.getSimpleName());
+    for (int attempt = 1; ; attempt++) {
+      try {
+        return updateImpl(id, dao::get, updater);
+      } catch (UniMatrixException e) {
+        if (!isVersionConflict(e) || !retryPolicy.canRetry(attempt)) {
+          throw e;
+        }
+        log.debug("Version conflict updating {} {} on attempt {}", entityClass.getSimpleName(), id, attempt);
+      }
+      try {
+        retryPolicy.pause(attempt);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw UniMatrixException.from()
+            .exception(e)
+            .build();
+      }
+    }
+  }
+
+  private static boolean isVersionConflict(Throwable e) {
+    for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+      if (cause instanceof StaleStateException || cause instanceof OptimisticLockException) {
+        return true;
+      }
+    }
+    return false;
+  }
+
   public TransactionContext<T> getTransactionContext(Long id) {
-    return new TransactionContext<T>(dao.sessionFactory, dao::getLockedForWrite, id);
+    return new TransactionContext<T>(dao.sessionFactory, TransactionContext.Mode.READ, dao::getLockedForWrite, id)
+        .queryTimeout(queryTimeout)
+        .timeout(timeout);
+  }
+
+  public TransactionContext<T> getTransactionContextByKey(Object key) {
+    return new TransactionContext<T>(dao.sessionFactory, TransactionContext.Mode.READ, dao::getLockedForWrite,
+        metadata.toKey(key))
+        .queryTimeout(queryTimeout)
+        .timeout(timeout);
   }
 
   public TransactionContext<T> getTransactionContext(LongSupplier supplier) {
     return getTransactionContext(supplier.getAsLong());
   }
 
+  /**
+   * Compiles a pipeline into a reusable, thread safe template. The pipeline is built once on a context without a key;
+   * each {@link TransactionTemplate#execute(Object)} then locks the row of the given key and runs the same operations.
+   */
+  public TransactionTemplate<T> transactionTemplate(String name, Consumer<TransactionContext<T>> pipeline) {
+    TransactionContext<T> prototype = new TransactionContext<T>(dao.sessionFactory, TransactionContext.Mode.READ,
+        dao::getLockedForWrite, (Serializable) null)
+        .queryTimeout(queryTimeout)
+        .timeout(timeout);
+    pipeline.accept(prototype);
+    return new TransactionTemplate<>(name, metadata, prototype);
+  }
+
+  /**
+   * Template variant of {@link #saveTransactionContext(Object)}, executed with the entity to save
+   */
+  public TransactionTemplate<T> saveTransactionTemplate(String name, Consumer<TransactionContext<T>> pipeline) {
+    TransactionContext<T> prototype = new TransactionContext<T>(dao.sessionFactory, TransactionContext.Mode.INSERT,
+        (session, e) -> Optional.ofNullable(dao.save(session, e)), (T) null)
+        .queryTimeout(queryTimeout)
+        .timeout(timeout);
+    pipeline.accept(prototype);
+    return new TransactionTemplate<>(name, metadata, prototype);
+  }
+
   public BatchTransactionContext<T> getBatchTransactionContext(List<Long> ids) {
-    return new BatchTransactionContext<>(dao.sessionFactory, dao::getLockedForWrite, ids, true);
+    return new BatchTransactionContext<>(dao.sessionFactory, dao::getLockedForWrite, ids, true)
+        .queryTimeout(queryTimeout)
+        .timeout(timeout);
+  }
+
+  public BatchTransactionContext<T> getBatchTransactionContext(long[] ids) {
+    return new BatchTransactionContext<>(dao.sessionFactory, dao::getLockedForWrite, ids)
+        .queryTimeout(queryTimeout)
+        .timeout(timeout);
   }
 
   public BatchTransactionContext<T> getBatchTransactionContext(Supplier<List<Long>> supplier) {
     return getBatchTransactionContext(supplier.get());
   }
 
+  /**
+   * Batch over the keys which still exist, used by {@link BulkUpdate} where rows may be deleted after their keys were
+   * selected.
+   */
+  BatchTransactionContext<T> getExistingBatchTransactionContext(long[] ids) {
+    return new BatchTransactionContext<>(dao.sessionFactory, dao::getLockedForWrite, ids)
+        .skipMissing()
+        .queryTimeout(queryTimeout)
+        .timeout(timeout);
+  }
+
+  /**
+   * Updates the rows with the given ids in chunks of separate transactions, see {@link BulkUpdate}
+   */
+  public BulkUpdate<T> bulkUpdate(long[] ids, TransactionContext.Mutator<T> updater) {
+    return new BulkUpdate<>(this, ids, null, updater);
+  }
+
+  /**
+   * Updates the rows matching the criteria in chunks of separate transactions, see {@link BulkUpdate}. The ids are
+   * selected once when the update is executed, rows matching later are not updated.
+   */
+  public BulkUpdate<T> bulkUpdate(DetachedCriteria criteria, TransactionContext.Mutator<T> updater) {
+    return new BulkUpdate<>(this, null, criteria, updater);
+  }
+
+  /**
+   * Claims up to {@code limit} rows matching the criteria for this transaction. Rows are locked with a pessimistic
+   * write lock that skips rows already locked by other transactions, so concurrent workers polling the same criteria
+   * each get a disjoint batch. Add an order to the criteria to claim rows in a stable order.
+   * <p>
+   * Skipping needs SKIP LOCKED support in the dialect ({@link org.hibernate.dialect.Dialect#supportsSkipLocked()}).
+   * Other dialects, H2 among them, fall back to a plain FOR UPDATE: a concurrent claim then blocks until the holder
+   * commits and may come back with rows the holder already processed, so workers are not disjoint there.
+   */
+  public BatchTransactionContext<T> claimBatchTransactionContext(DetachedCriteria criteria, int limit) {
+    CriteriaParams params = CriteriaParams.builder()
+        .criteria(criteria)
+        .limit(limit)
+        .build();
+    return new BatchTransactionContext<T>(dao.sessionFactory, session -> dao.claim(session, params))
+        .queryTimeout(queryTimeout)
+        .timeout(timeout);
+  }
+
   public TransactionContext<T> saveTransactionContext(T entity) {
-    return new TransactionContext<>(dao.sessionFactory, dao::save, entity);
+    return new TransactionContext<T>(dao.sessionFactory, TransactionContext.Mode.INSERT,
+        (session, e) -> Optional.ofNullable(dao.save(session, e)), entity)
+        .queryTimeout(queryTimeout)
+        .timeout(timeout);
   }
 
   public TransactionContext<T> saveTransactionContext(Supplier<T> generator) {
@@ -153,7 +513,9 @@ public class EntityDao<T> {
   }
 
   public BatchTransactionContext<T> saveBatchTransactionContext(List<T> entities) {
-    return new BatchTransactionContext<>(dao.sessionFactory, dao::save, entities);
+    return new BatchTransactionContext<>(dao.sessionFactory, dao::save, entities)
+        .queryTimeout(queryTimeout)
+        .timeout(timeout);
   }
 
   public BatchTransactionContext<T> saveBatchTransactionContext(Supplier<List<T>> generator) {
@@ -161,40 +523,36 @@ public class EntityDao<T> {
   }
 
   public long count(DetachedCriteria criteria) throws UniMatrixException {
-    return TransactionManager
-        .newTransaction()
-        .readOnly(true)
-        .sessionFactory(dao.sessionFactory)
-        .build()
-        .execute(dao::count, criteria);
+    return reader.execute(rowCount, criteria);
+  }
+
+  /**
+   * Ids of the rows matching the criteria, in the criteria's order. Only the id column is selected.
+   */
+  public long[] selectIds(DetachedCriteria criteria) throws UniMatrixException {
+    Preconditions.checkState(metadata.isLongId(), "%s does not have a long id", entityClass.getSimpleName());
+    return newTransaction(true).executeInSession((session, c) -> ids(c.getExecutableCriteria(session))
+        .stream()
+        .mapToLong(Number::longValue)
+        .toArray(), criteria);
+  }
+
+  @SuppressWarnings("unchecked")
+  private static List<Number> ids(Criteria criteria) {
+    return criteria.setProjection(Projections.id()).list();
   }
 
   public BigDecimal sum(DetachedCriteria criteria, String propertyName) throws UniMatrixException {
     criteria.setProjection(Projections.sum(propertyName));
-    return TransactionManager
-        .newTransaction()
-        .readOnly(true)
-        .sessionFactory(dao.sessionFactory)
-        .build()
-        .execute(dao::sum, criteria);
+    return newTransaction(true).executeInSession(dao::sum, criteria);
   }
 
   public long max(DetachedCriteria criteria, String propertyName) throws UniMatrixException {
-    return TransactionManager
-        .newTransaction()
-        .readOnly(true)
-        .sessionFactory(dao.sessionFactory)
-        .build()
-        .execute(dao::max, MaxParams.builder().criteria(criteria).propertyName(propertyName).build());
+    return newTransaction(true).executeInSession(dao::max, MaxParams.builder().criteria(criteria).propertyName(propertyName).build());
   }
 
   public <U> List<U> select(DetachedCriteria detachedCriteria, Function<List<T>, List<U>> handler, int limit, int offset) throws UniMatrixException {
-    return TransactionManager
-        .newTransaction()
-        .readOnly(true)
-        .sessionFactory(dao.sessionFactory)
-        .build()
-        .execute(dao::select, CriteriaParams.builder()
+    return newTransaction(true).executeInSession(dao::select, CriteriaParams.builder()
             .criteria(detachedCriteria)
             .limit(limit)
             .offset(offset)
@@ -202,77 +560,210 @@ public class EntityDao<T> {
   }
 
   public <U> List<U> select(DetachedCriteria criteria, Function<List<T>, List<U>> handler, int pageSize) throws UniMatrixException {
-    return TransactionManager
-        .newTransaction()
-        .readOnly(true)
-        .sessionFactory(dao.sessionFactory)
-        .build()
-        .execute(dao::select, CriteriaParams.builder()
+    return newTransaction(true).executeInSession(dao::select, CriteriaParams.builder()
             .criteria(criteria)
             .limit(pageSize)
             .build(), handler);
   }
 
   public <U> List<U> select(DetachedCriteria criteria, Function<List<T>, List<U>> handler) throws UniMatrixException {
-    return TransactionManager
-        .newTransaction()
-        .readOnly(true)
-        .sessionFactory(dao.sessionFactory)
-        .build()
-        .execute(dao::select, criteria, handler);
+    return newTransaction(true).executeInSession(dao::select, criteria, handler);
   }
 
   public <U> List<U> select(String query, Map<String, Object> params, Function<List<T>, List<U>> handler) throws UniMatrixException {
-    return TransactionManager
-        .newTransaction()
-        .readOnly(true)
-        .sessionFactory(dao.sessionFactory)
-        .build()
-        .execute(dao::select, QueryParams.builder()
+    return newTransaction(true).executeInSession(dao::select, QueryParams.builder()
             .query(query)
             .params(params)
             .build(), handler);
 
   }
 
+  /**
+   * Streams the matching entities with backpressure. Each subscription runs the query in its own read only
+   * transaction over a forward only cursor reading {@code fetchSize} rows per round trip; more rows are read only as
+   * the subscriber requests them. The transaction and its connection are held from the first request until the stream
+   * completes, fails or is cancelled.
+   */
+  public Flow.Publisher<T> stream(DetachedCriteria criteria) {
+    return stream(criteria, DEFAULT_FETCH_SIZE);
+  }
+
+  public Flow.Publisher<T> stream(DetachedCriteria criteria, int fetchSize) {
+    return new ScrollPublisher<>(() -> newTransaction(true), session -> criteria.getExecutableCriteria(session)
+        .setFetchSize(fetchSize)
+        .setReadOnly(true)
+        .scroll(ScrollMode.FORWARD_ONLY));
+  }
+
+  public Flow.Publisher<T> stream(String query, Map<String, Object> params, int fetchSize) {
+    return new ScrollPublisher<>(() -> newTransaction(true), session -> {
+      Query<T> tQuery = session.createQuery(query, entityClass);
+      if (params != null) {
+        params.forEach(tQuery::setParameter);
+      }
+      return tQuery.setFetchSize(fetchSize)
+          .setReadOnly(true)
+          .scroll(ScrollMode.FORWARD_ONLY);
+    });
+  }
+
   public Optional<T> selectSingle(DetachedCriteria detachedCriteria) throws UniMatrixException {
     return selectSingle(detachedCriteria, t -> t);
   }
 
   public <U> Optional<U> selectSingle(DetachedCriteria detachedCriteria, Function<T, U> handler) throws UniMatrixException {
-    return Optional.ofNullable(TransactionManager
-        .newTransaction()
-        .readOnly(true)
-        .sessionFactory(dao.sessionFactory)
-        .build()
-        .execute(dao::selectSingle, detachedCriteria, handler));
+    return Optional.ofNullable(newTransaction(true).executeInSession(dao::selectSingle, detachedCriteria, handler));
   }
 
   public int update(String query, Map<String, Object> params) throws UniMatrixException {
-    return TransactionManager
-        .newTransaction()
-        .readOnly(false)
-        .sessionFactory(dao.sessionFactory)
-        .build()
-        .execute(dao::update, QueryParams.builder()
+    return newTransaction(false).executeInSession(dao::update, QueryParams.builder()
             .params(params)
             .query(query)
             .build());
   }
 
   public int updateNative(String query, Map<String, Object> params) throws UniMatrixException {
-    return TransactionManager
-        .newTransaction()
-        .readOnly(false)
-        .sessionFactory(dao.sessionFactory)
-        .build()
-        .execute(dao::update, QueryParams.builder()
+    return newTransaction(false).executeInSession(dao::update, QueryParams.builder()
             .params(params)
             .query(query)
             .nativeQuery(true)
             .build());
   }
 
+  /*
+   * Reads in a session owned by the caller, used by ReadBatch to run several reads in one transaction
+   */
+
+  Optional<T> get(Session session, Serializable key) {
+    return dao.get(session, key);
+  }
+
+  List<T> get(Session session, List<? extends Serializable> keys) {
+    return dao.get(session, keys);
+  }
+
+  long count(Session session, DetachedCriteria criteria) {
+    return rowCount.apply(session, criteria);
+  }
+
+  List<T> select(Session session, CriteriaParams criteriaParams) {
+    return dao.select(session, criteriaParams);
+  }
+
+  List<T> select(Session session, QueryParams queryParams) {
+    return dao.select(session, queryParams);
+  }
+
+  /*
+   * Deferred child writes of transaction contexts. They only join the unit of work of the given session and are
+   * flushed with it, in ordered JDBC batches.
+   */
+
+  void stage(Session session, T entity) {
+    session.saveOrUpdate(Objects.requireNonNull(entity));
+  }
+
+  void stage(Session session, List<T> entities) {
+    entities.forEach(session::saveOrUpdate);
+  }
+
+  /**
+   * Loads the entity into the session and applies the updater. Changes to the loaded entity are written by the dirty
+   * check at flush; a different instance returned by the updater is merged, or copied onto the loaded one in
+   * {@link UpdateMode#DIFF}. In both update modes the write joins the batches flushed at commit.
+   */
+  boolean stageUpdate(Session session, Serializable key, UnaryOperator<Optional<T>> updater) {
+    Optional<T> entity = dao.get(session, key);
+    if (entity.isEmpty()) {
+      return false;
+    }
+    Optional<T> newEntity = updater.apply(entity);
+    if (newEntity.isEmpty()) {
+      return false;
+    }
+    if (updateMode == UpdateMode.DIFF) {
+      dao.updateChanged(session, entity.get(), newEntity.get());
+    } else if (newEntity.get() != entity.get()) {
+      session.merge(newEntity.get());
+    }
+    return true;
+  }
+
+  int update(Session session, String query, Map<String, Object> params) {
+    return dao.update(session, QueryParams.builder()
+        .params(params)
+        .query(query)
+        .build());
+  }
+
+  /*
+   * Asynchronous variants. They run on the bounded AsyncExecutor of the UniMatrix which built the session factory and
+   * fail with a RejectedExecutionException when its queue is full or the UniMatrix is closed.
+   */
+
+  public CompletableFuture<Optional<T>> getAsync(Long id) {
+    return async(() -> get(id));
+  }
+
+  public CompletableFuture<List<T>> getAsync(List<Long> ids) {
+    return async(() -> get(ids));
+  }
+
+  public CompletableFuture<Optional<T>> saveAsync(T entity) {
+    return async(() -> save(entity));
+  }
+
+  public CompletableFuture<List<T>> saveAsync(List<T> entities) {
+    return async(() -> save(entities));
+  }
+
+  public CompletableFuture<Boolean> updateAsync(Long id, UnaryOperator<Optional<T>> updater) {
+    return async(() -> update(id, updater));
+  }
+
+  public CompletableFuture<List<T>> selectAsync(DetachedCriteria criteria) {
+    return async(() -> select(criteria, e -> e));
+  }
+
+  public <U> CompletableFuture<List<U>> selectAsync(DetachedCriteria criteria, Function<List<T>, List<U>> handler) {
+    return async(() -> select(criteria, handler));
+  }
+
+  public <U> CompletableFuture<List<U>> selectAsync(String query, Map<String, Object> params,
+                                                    Function<List<T>, List<U>> handler) {
+    return async(() -> select(query, params, handler));
+  }
+
+  public CompletableFuture<Long> countAsync(DetachedCriteria criteria) {
+    return async(() -> count(criteria));
+  }
+
+  private <U> CompletableFuture<U> async(AsyncExecutor.AsyncCall<U> call) {
+    try {
+      return UniMatrix.asyncExecutor(dao.sessionFactory).submit(call);
+    } catch (RejectedExecutionException e) {
+      return CompletableFuture.failedFuture(e);
+    }
+  }
+
+  /**
+   * How {@code update}, {@code updateInLock} and the deferred updates of a transaction context write the entity
+   * returned by the updater
+   */
+  public enum UpdateMode {
+    /**
+     * Reattach the entity and write every column
+     */
+    FULL,
+    /**
+     * Apply the changes to the entity loaded in the transaction and let the flush write only the changed columns.
+     * Needs an entity with Hibernate's dynamic update ({@code @DynamicUpdate}). The update runs through the regular
+     * flush, so callbacks, listeners, batching and cache invalidation apply, and nothing is written when the updater
+     * changed nothing.
+     */
+    DIFF
+  }
+
   @Data
   @Builder
   public static class CriteriaParams {
@@ -317,24 +808,70 @@ public class EntityDao<T> {
 
     private final SessionFactory sessionFactory;
     private final Mode mode;
-    private Function<Long, Optional<T>> function;
-    private UnaryOperator<T> saver;
+    private final TransactionManager.SessionFunction<Object, Optional<T>> loader;
     private T entity;
-    private Long key;
-    private List<Function<T, Void>> operations = Lists.newArrayList();
-
-    public TransactionContext(SessionFactory sessionFactory, Function<Long, Optional<T>> getter, Long key) {
-      this.sessionFactory = sessionFactory;
-      this.function = getter;
-      this.key = key;
-      this.mode = Mode.READ;
+    private Serializable key;
+    private List<Operation<T>> operations = Lists.newArrayList();
+    private int queryTimeout;
+    private int timeout;
+    private boolean deferWrites;
+    /**
+     * Session of the running transaction, set while {@link #execute()} runs. Operations use it instead of
+     * {@code sessionFactory.getCurrentSession()} with the {@link TransactionManager.SessionContext#EXPLICIT} context
+     */
+    private Session session;
+
+    public <K extends Serializable> TransactionContext(SessionFactory sessionFactory, Function<K, Optional<T>> getter, K key) {
+      this(sessionFactory, Mode.READ, (session, k) -> getter.apply(k), key);
     }
 
     public TransactionContext(SessionFactory sessionFactory, UnaryOperator<T> saver, T entity) {
+      this(sessionFactory, Mode.INSERT, (session, e) -> Optional.ofNullable(saver.apply(e)), entity);
+    }
+
+    @SuppressWarnings("unchecked")
+    <U> TransactionContext(SessionFactory sessionFactory, Mode mode,
+                           TransactionManager.SessionFunction<U, Optional<T>> loader, U arg) {
       this.sessionFactory = sessionFactory;
-      this.saver = saver;
-      this.entity = entity;
-      this.mode = Mode.INSERT;
+      this.mode = mode;
+      this.loader = (TransactionManager.SessionFunction<Object, Optional<T>>) loader;
+      if (mode == Mode.READ) {
+        this.key = (Serializable) arg;
+      } else {
+        this.entity = (T) arg;
+      }
+    }
+
+    /**
+     * Context of one execution of a {@link TransactionTemplate}, sharing the template's immutable operations
+     */
+    <U> TransactionContext(SessionFactory sessionFactory, Mode mode,
+                           TransactionManager.SessionFunction<U, Optional<T>> loader, U arg,
+                           List<Operation<T>> operations, int queryTimeout, int timeout) {
+      this(sessionFactory, mode, loader, arg);
+      this.operations = operations;
+      this.queryTimeout = queryTimeout;
+      this.timeout = timeout;
+    }
+
+    public TransactionContext<T> queryTimeout(int queryTimeout) {
+      this.queryTimeout = queryTimeout;
+      return this;
+    }
+
+    public TransactionContext<T> timeout(int timeout) {
+      this.timeout = timeout;
+      return this;
+    }
+
+    /**
+     * Child saves and updates of the pipeline join this transaction's unit of work instead of running in their own
+     * transactions. They are flushed together at commit as ordered JDBC batches, and roll back with the pipeline.
+     * Children with identity generated ids are still inserted one at a time as their ids are needed right away.
+     */
+    public TransactionContext<T> deferWrites(boolean deferWrites) {
+      this.deferWrites = deferWrites;
+      return this;
     }
 
     public TransactionContext<T> mutate(Mutator<T> mutator) {
@@ -345,70 +882,102 @@ public class EntityDao<T> {
     }
 
     public TransactionContext<T> apply(Function<T, Void> handler) {
-      this.operations.add(handler);
+      return applyInSession((session, parent) -> handler.apply(parent));
+    }
+
+    /**
+     * Adds an operation which receives the session of the running transaction along with the parent entity
+     */
+    public TransactionContext<T> applyInSession(Operation<T> operation) {
+      this.operations.add(operation);
       return this;
     }
 
     public <U> TransactionContext<T> save(EntityDao<U> lookupDao, Function<T, U> entityGenerator) {
-      return apply(parent -> {
+      return applyInSession((session, parent) -> {
         try {
           U generatedEntity = entityGenerator.apply(parent);
-          lookupDao.save(generatedEntity);
+          if (deferWrites) {
+            lookupDao.stage(session, generatedEntity);
+          } else {
+            lookupDao.save(generatedEntity);
+          }
         } catch (Exception e) {
           throw new UnimatrixRuntimeException(e);
         }
-        return null;
       });
     }
 
     public <U> TransactionContext<T> save(EntityDao<U> lookupDao, Function<T, U> entityGenerator, BiFunction<U, T, Void> postPersistHandler) {
-      return apply(parent -> {
+      return applyInSession((session, parent) -> {
         try {
           U generatedEntity = entityGenerator.apply(parent);
-          lookupDao.save(generatedEntity);
+          if (deferWrites) {
+            lookupDao.stage(session, generatedEntity);
+          } else {
+            lookupDao.save(generatedEntity);
+          }
           postPersistHandler.apply(generatedEntity, parent);
         } catch (Exception e) {
           throw new UnimatrixRuntimeException(e);
         }
-        return null;
       });
     }
 
-
-
     public <U> TransactionContext<T> saveAll(EntityDao<U> lookupDao, Function<T, List<U>> entityGenerator) {
-      return apply(parent -> {
+      return applyInSession((session, parent) -> {
         try {
           List<U> entities = entityGenerator.apply(parent);
-          lookupDao.save(entities);
+          if (deferWrites) {
+            lookupDao.stage(session, entities);
+          } else {
+            lookupDao.save(entities);
+          }
         } catch (Exception e) {
           throw new UnimatrixRuntimeException(e);
         }
-        return null;
       });
     }
 
     public <U> TransactionContext<T> update(EntityDao<U> lookupDao, Long id, UnaryOperator<Optional<U>> handler) {
-      return apply(parent -> {
+      return applyInSession((session, parent) -> {
         try {
-          lookupDao.update(id, handler);
+          if (deferWrites) {
+            lookupDao.stageUpdate(session, id, handler);
+          } else {
+            lookupDao.update(id, handler);
+          }
+        } catch (Exception e) {
+          throw new UnimatrixRuntimeException(e);
+        }
+      });
+    }
+
+    public <U> TransactionContext<T> updateByKey(EntityDao<U> lookupDao, Object key, UnaryOperator<Optional<U>> handler) {
+      return applyInSession((session, parent) -> {
+        try {
+          if (deferWrites) {
+            lookupDao.stageUpdate(session, lookupDao.getMetadata().toKey(key), handler);
+          } else {
+            lookupDao.updateByKey(key, handler);
+          }
         } catch (Exception e) {
           throw new UnimatrixRuntimeException(e);
         }
-        return null;
       });
     }
 
     public <U> TransactionContext<T> update(EntityDao<U> lookupDao, String query, Map<String, Object> params) {
-      return apply(parent -> {
+      return applyInSession((session, parent) -> {
         try {
-          int result = lookupDao.update(query, params);
+          int result = deferWrites
+              ? lookupDao.update(session, query, params)
+              : lookupDao.update(query, params);
           if (result < 1)
             throw UniMatrixException.fromMessage().message("Update operation returned result " + result).build();
         } catch (Exception e) {
           throw new UnimatrixRuntimeException(e);
         }
-        return null;
       });
     }
 
@@ -426,22 +995,55 @@ public class EntityDao<T> {
       });
     }
 
+    /**
+     * Runs the step inside a savepoint. If the step fails, the transaction is rolled back to the savepoint and the
+     * pipeline continues with the next operation. Row locks acquired before the savepoint are retained.
+     * <p>
+     * Only writes made through the pipeline's session ({@link #getSession()} or
+     * {@code sessionFactory.getCurrentSession()}) are rolled back. Dao calls such as {@code lookupDao.save(..)} inside
+     * the step run and commit in their own transaction and are kept when the step fails.
+     */
+    public TransactionContext<T> savepoint(Function<T, Void> step) {
+      return applyInSession((session, parent) -> runInSavepoint(session, parent, step, null));
+    }
+
+    /**
+     * Runs the step inside a savepoint. If the step fails, the transaction is rolled back to the savepoint and the
+     * alternative is run instead. A failure of the alternative fails the transaction. As with
+     * {@link #savepoint(Function)} only writes through the pipeline's session are rolled back.
+     */
+    public TransactionContext<T> savepoint(Function<T, Void> step, Function<T, Void> alternative) {
+      return applyInSession((session, parent) -> runInSavepoint(session, parent, step, alternative));
+    }
+
+    /**
+     * Runs {@link #execute()} on the async executor
+     */
+    public CompletableFuture<T> executeAsync() {
+      return UniMatrix.asyncExecutor(sessionFactory).submit(this::execute);
+    }
+
     public T execute() {
       var transactionManager = TransactionManager.newTransaction()
           .readOnly(false)
           .sessionFactory(sessionFactory)
+          .queryTimeout(queryTimeout)
+          .timeout(timeout)
           .build();
       transactionManager.beforeStart();
+      session = transactionManager.getSession();
       try {
         T result = generateEntity();
-        operations
-            .forEach(operation -> operation.apply(result));
+        for (Operation<T> operation : operations) {
+          operation.apply(session, result);
+        }
         return result;
       } catch (Exception e) {
         transactionManager.onError(e);
         throw e;
       } finally {
         transactionManager.afterEnd();
+        session = null;
       }
     }
 
@@ -449,13 +1051,13 @@ public class EntityDao<T> {
       Optional<T> result = Optional.empty();
       switch (mode) {
         case READ:
-          result = function.apply(key);
+          result = loader.apply(session, key);
           if (result.isEmpty()) {
             throw new UnimatrixRuntimeException("Entity doesn't exist for keys: " + key);
           }
           break;
         case INSERT:
-          result = Optional.ofNullable(saver.apply(entity));
+          result = loader.apply(session, entity);
           break;
         default:
           break;
@@ -464,12 +1066,78 @@ public class EntityDao<T> {
       return result.orElse(null);
     }
 
+    private static <T> void runInSavepoint(Session session, T parent, Function<T, Void> step,
+                                           Function<T, Void> alternative) {
+      session.flush();
+      Set<Object> managed = managedEntities(session);
+      Savepoint savepoint = session.doReturningWork(Connection::setSavepoint);
+      try {
+        step.apply(parent);
+        session.flush();
+      } catch (RuntimeException e) {
+        log.debug("Rolling back to savepoint after step failure", e);
+        session.doWork(connection -> connection.rollback(savepoint));
+        release(session, savepoint);
+        restore(session, managed);
+        if (alternative != null) {
+          alternative.apply(parent);
+        }
+        return;
+      }
+      release(session, savepoint);
+    }
+
+    /**
+     * Frees the savepoint once it is no longer needed, otherwise every step of a long pipeline keeps one open on the
+     * connection until commit.
+     */
+    private static void release(Session session, Savepoint savepoint) {
+      session.doWork(connection -> {
+        try {
+          connection.releaseSavepoint(savepoint);
+        } catch (SQLFeatureNotSupportedException e) {
+          // Oracle keeps savepoints until the transaction ends
+          log.trace("Savepoints can not be released", e);
+        }
+      });
+    }
+
+    private static Set<Object> managedEntities(Session session) {
+      Set<Object> entities = Collections.newSetFromMap(new IdentityHashMap<>());
+      for (Map.Entry<Object, EntityEntry> entry : session.unwrap(SessionImplementor.class)
+          .getPersistenceContext()
+          .reentrantSafeEntityEntries()) {
+        entities.add(entry.getKey());
+      }
+      return entities;
+    }
+
+    /**
+     * Brings the session back in line with the database after a rollback to savepoint: pending actions of the failed
+     * step are dropped, entities it attached are evicted and entities managed before the savepoint are reloaded.
+     */
+    private static void restore(Session session, Set<Object> managed) {
+      session.unwrap(SessionImplementor.class).getActionQueue().clear();
+      for (Object entity : managedEntities(session)) {
+        if (managed.contains(entity)) {
+          session.refresh(entity);
+        } else {
+          session.evict(entity);
+        }
+      }
+    }
+
     enum Mode {READ, INSERT}
 
     @FunctionalInterface
     public interface Mutator<T> {
       void mutator(T parent);
     }
+
+    @FunctionalInterface
+    public interface Operation<T> {
+      void apply(Session session, T parent);
+    }
   }
 
 
@@ -478,26 +1146,122 @@ public class EntityDao<T> {
 
     private final SessionFactory sessionFactory;
     private final Mode mode;
-    private Function<List<Long>, List<T>> function;
-    private UnaryOperator<List<T>> saver;
+    private TransactionManager.SessionFunction<List<Long>, List<T>> function;
+    private TransactionManager.SessionFunction<List<T>, List<T>> saver;
+    private Function<Session, List<T>> claimer;
     private List<T> entity;
-    private List<Long> keys;
+    private long[] keys;
+    /**
+     * Keys as the caller passed them, null keys included, when given as a list
+     */
+    private List<Long> requestedKeys;
+    private boolean skipMissing;
     private List<Function<List<T>, Void>> operations = Lists.newArrayList();
+    private int queryTimeout;
+    private int timeout;
+    private int lockChunkSize;
+    private boolean deferWrites;
+    /**
+     * Time taken to read and lock the rows for the keys in milliseconds, available after {@link #execute()}
+     */
+    private long lockAcquisitionTime;
+    /**
+     * Session of the running transaction, set while {@link #execute()} runs
+     */
+    private Session session;
 
     public BatchTransactionContext(SessionFactory sessionFactory, Function<List<Long>, List<T>> getter, List<Long> keys, boolean read) {
+      this(sessionFactory, (session, k) -> getter.apply(k), keys, read);
+    }
+
+    BatchTransactionContext(SessionFactory sessionFactory, TransactionManager.SessionFunction<List<Long>, List<T>> getter,
+                            List<Long> keys, boolean read) {
       this.sessionFactory = sessionFactory;
       this.function = getter;
-      this.keys = keys;
+      this.requestedKeys = keys;
+      this.keys = keys == null ? null : keys.stream()
+          .filter(Objects::nonNull)
+          .mapToLong(Long::longValue)
+          .toArray();
       this.mode = read ? Mode.READ : Mode.INSERT;
     }
 
+    public BatchTransactionContext(SessionFactory sessionFactory, Function<List<Long>, List<T>> getter, long[] keys) {
+      this(sessionFactory, (session, k) -> getter.apply(k), keys);
+    }
+
+    BatchTransactionContext(SessionFactory sessionFactory, TransactionManager.SessionFunction<List<Long>, List<T>> getter,
+                            long[] keys) {
+      this.sessionFactory = sessionFactory;
+      this.function = getter;
+      this.keys = keys;
+      this.mode = Mode.READ;
+    }
+
     public BatchTransactionContext(SessionFactory sessionFactory, UnaryOperator<List<T>> saver, List<T> entity) {
+      this(sessionFactory, (session, e) -> saver.apply(e), entity);
+    }
+
+    BatchTransactionContext(SessionFactory sessionFactory, TransactionManager.SessionFunction<List<T>, List<T>> saver,
+                            List<T> entity) {
       this.sessionFactory = sessionFactory;
       this.saver = saver;
       this.entity = entity;
       this.mode = Mode.INSERT;
     }
 
+    public BatchTransactionContext(SessionFactory sessionFactory, Supplier<List<T>> claimer) {
+      this(sessionFactory, (Function<Session, List<T>>) session -> claimer.get());
+    }
+
+    BatchTransactionContext(SessionFactory sessionFactory, Function<Session, List<T>> claimer) {
+      this.sessionFactory = sessionFactory;
+      this.claimer = claimer;
+      this.mode = Mode.CLAIM;
+    }
+
+    public List<Long> getKeys() {
+      if (requestedKeys != null) {
+        return requestedKeys;
+      }
+      return keys == null ? null : Longs.asList(keys);
+    }
+
+    /**
+     * Drops the entities of keys without a row from the result instead of returning null for them
+     */
+    BatchTransactionContext<T> skipMissing() {
+      this.skipMissing = true;
+      return this;
+    }
+
+    public BatchTransactionContext<T> queryTimeout(int queryTimeout) {
+      this.queryTimeout = queryTimeout;
+      return this;
+    }
+
+    public BatchTransactionContext<T> timeout(int timeout) {
+      this.timeout = timeout;
+      return this;
+    }
+
+    /**
+     * Splits the locking read into chunks of at most {@code lockChunkSize} keys. Chunks are read in key order.
+     */
+    public BatchTransactionContext<T> lockChunkSize(int lockChunkSize) {
+      this.lockChunkSize = lockChunkSize;
+      return this;
+    }
+
+    /**
+     * Child writes of the pipeline join this transaction's unit of work and are flushed together at commit, see
+     * {@link TransactionContext#deferWrites(boolean)}
+     */
+    public BatchTransactionContext<T> deferWrites(boolean deferWrites) {
+      this.deferWrites = deferWrites;
+      return this;
+    }
+
     public BatchTransactionContext<T> mutate(Mutator<T> mutator) {
       return apply(parent -> {
         mutator.mutator(parent);
@@ -514,7 +1278,11 @@ public class EntityDao<T> {
       return apply(parent -> {
         try {
           List<U> entities = entityGenerator.apply(parent);
-          entityDao.save(entities);
+          if (deferWrites) {
+            entityDao.stage(session, entities);
+          } else {
+            entityDao.save(entities);
+          }
         } catch (Exception e) {
           throw new UnimatrixRuntimeException(e);
         }
@@ -526,7 +1294,11 @@ public class EntityDao<T> {
       return apply(parent -> {
         try {
           List<U> entities = entityGenerator.apply(parent);
-          lookupDao.save(entities);
+          if (deferWrites) {
+            lookupDao.stage(session, entities);
+          } else {
+            lookupDao.save(entities);
+          }
           postPersistHandler.apply(entities, parent);
         } catch (Exception e) {
           throw new UnimatrixRuntimeException(e);
@@ -541,7 +1313,11 @@ public class EntityDao<T> {
         try {
           Optional<U> generatedEntity = entityGenerator.apply(parent);
           if (generatedEntity.isPresent()) {
-            lookupDao.save(generatedEntity.get());
+            if (deferWrites) {
+              lookupDao.stage(session, generatedEntity.get());
+            } else {
+              lookupDao.save(generatedEntity.get());
+            }
           }
           postPersistHandler.apply(generatedEntity, parent);
         } catch (Exception e) {
@@ -556,9 +1332,17 @@ public class EntityDao<T> {
         try {
           Optional<U> generatedEntity = entityGenerator.apply(parent);
           if (generatedEntity.isPresent()) {
-            lookupDao.save(generatedEntity.get());
+            if (deferWrites) {
+              lookupDao.stage(session, generatedEntity.get());
+            } else {
+              lookupDao.save(generatedEntity.get());
+            }
+          }
+          if (deferWrites) {
+            parentLookupDao.update(session, postPersistUpdateQuery.getQuery(), postPersistUpdateQuery.getParams());
+          } else {
+            parentLookupDao.update(postPersistUpdateQuery.getQuery(), postPersistUpdateQuery.getParams());
           }
-          parentLookupDao.update(postPersistUpdateQuery.getQuery(), postPersistUpdateQuery.getParams());
         } catch (Exception e) {
           throw new UnimatrixRuntimeException(e);
         }
@@ -566,19 +1350,30 @@ public class EntityDao<T> {
       });
     }
 
+    /**
+     * Runs {@link #execute()} on the async executor
+     */
+    public CompletableFuture<List<T>> executeAsync() {
+      return UniMatrix.asyncExecutor(sessionFactory).submit(this::execute);
+    }
+
     public List<T> execute() {
       TransactionManager transactionManager = TransactionManager.newTransaction()
-          .sessionFactory(sessionFactory).readOnly(false).build();
+          .sessionFactory(sessionFactory).readOnly(false).queryTimeout(queryTimeout).timeout(timeout).build();
       transactionManager.beforeStart();
+      session = transactionManager.getSession();
       try {
         List<T> result = generateEntity();
-        operations.forEach(operation -> operation.apply(result));
+        for (Function<List<T>, Void> operation : operations) {
+          operation.apply(result);
+        }
         return result;
       } catch (Exception e) {
         transactionManager.onError(e);
         throw e;
       } finally {
         transactionManager.afterEnd();
+        session = null;
       }
     }
 
@@ -586,13 +1381,16 @@ public class EntityDao<T> {
       List<T> result = null;
       switch (mode) {
         case READ:
-          result = function.apply(keys);
+          result = lockInOrder();
           if (result == null) {
-            throw new UnimatrixRuntimeException("Entity doesn't exist for keys: " + keys);
+            throw new UnimatrixRuntimeException("Entity doesn't exist for keys: " + getKeys());
           }
           break;
         case INSERT:
-          result = saver.apply(entity);
+          result = saver.apply(session, entity);
+          break;
+        case CLAIM:
+          result = claimer.apply(session);
           break;
         default:
           break;
@@ -601,7 +1399,73 @@ public class EntityDao<T> {
       return result;
     }
 
-    enum Mode {READ, INSERT}
+    /**
+     * Rows are always locked in ascending key order with duplicates removed, so concurrent batches over overlapping
+     * keys cannot deadlock each other. The result is mapped back to the requested keys, see {@link #inRequestedOrder}.
+     */
+    private List<T> lockInOrder() {
+      long start = System.nanoTime();
+      try {
+        if (keys == null) {
+          return function.apply(session, null);
+        }
+        long[] orderedKeys = distinctSorted(keys);
+        List<Long> boxedKeys = Longs.asList(orderedKeys);
+        if (lockChunkSize <= 0 || orderedKeys.length <= lockChunkSize) {
+          return inRequestedOrder(orderedKeys, function.apply(session, boxedKeys));
+        }
+        List<T> locked = new ArrayList<>(orderedKeys.length);
+        for (List<Long> chunk : Lists.partition(boxedKeys, lockChunkSize)) {
+          locked.addAll(function.apply(session, chunk));
+        }
+        return inRequestedOrder(orderedKeys, locked);
+      } finally {
+        lockAcquisitionTime = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        log.debug("Locked {} keys in {}ms", keys == null ? 0 : keys.length, lockAcquisitionTime);
+      }
+    }
+
+    /**
+     * Returns one entity per requested key in the caller's order, null for null keys and keys without a row, and the
+     * same entity for repeated keys. Getters which do not return one entity per locked key are passed through in lock
+     * order.
+     */
+    private List<T> inRequestedOrder(long[] orderedKeys, List<T> locked) {
+      if (locked == null || locked.size() != orderedKeys.length) {
+        return locked;
+      }
+      List<T> result = new ArrayList<>(requestedKeys != null ? requestedKeys.size() : keys.length);
+      if (requestedKeys != null) {
+        for (Long key : requestedKeys) {
+          result.add(key == null ? null : locked.get(Arrays.binarySearch(orderedKeys, key)));
+        }
+      } else {
+        for (long key : keys) {
+          result.add(locked.get(Arrays.binarySearch(orderedKeys, key)));
+        }
+      }
+      if (skipMissing) {
+        result.removeIf(Objects::isNull);
+      }
+      return result;
+    }
+
+    /**
+     * Sorts a copy of the keys and compacts out duplicates in place, without boxing.
+     */
+    static long[] distinctSorted(long[] keys) {
+      long[] sorted = keys.clone();
+      Arrays.sort(sorted);
+      int size = 0;
+      for (int i = 0; i < sorted.length; i++) {
+        if (size == 0 || sorted[i] != sorted[size - 1]) {
+          sorted[size++] = sorted[i];
+        }
+      }
+      return size == sorted.length ? sorted : Arrays.copyOf(sorted, size);
+    }
+
+    enum Mode {READ, INSERT, CLAIM}
 
     @FunctionalInterface
     public interface Mutator<T> {
@@ -618,95 +1482,135 @@ public class EntityDao<T> {
       this.sessionFactory = sessionFactory;
     }
 
-    Optional<T> get(Long id) {
-      return getLocked(id, LockMode.READ);
+    Optional<T> get(Session session, Serializable id) {
+      return getLocked(session, id, LockMode.READ);
     }
 
-    Optional<T> getLocked(Long id, LockMode lockMode) {
-      return Optional.ofNullable(currentSession().get(entityClass, id, lockMode));
+    Optional<T> getLocked(Session session, Serializable id, LockMode lockMode) {
+      return Optional.ofNullable(session.get(entityClass, id, lockMode));
     }
 
-    List<T> get(List<Long> ids) {
-      return getLocked(ids, LockMode.READ);
+    List<T> get(Session session, List<? extends Serializable> ids) {
+      return getLocked(session, ids, LockMode.READ);
     }
 
-    List<T> getLocked(List<Long> ids, LockMode lockMode) {
-      MultiIdentifierLoadAccess<T> multiGet = currentSession().byMultipleIds(entityClass);
+    List<T> getLocked(Session session, List<? extends Serializable> ids, LockMode lockMode) {
+      MultiIdentifierLoadAccess<T> multiGet = session.byMultipleIds(entityClass);
       return multiGet.with(new LockOptions(lockMode)).multiLoad(ids);
     }
 
-    Optional<T> getLockedForWrite(Long id) {
-      return getLocked(id, LockMode.UPGRADE_NOWAIT);
+    Optional<T> getLockedForWrite(Session session, Serializable id) {
+      return getLocked(session, id, LockMode.UPGRADE_NOWAIT);
+    }
+
+    List<T> getLockedForWrite(Session session, List<Long> ids) {
+      return getLocked(session, ids, LockMode.UPGRADE_NOWAIT);
+    }
+
+    List<T> claim(Session session, CriteriaParams criteriaParams) {
+      return list(criteriaParams.criteria.getExecutableCriteria(session)
+          .setLockMode(LockMode.UPGRADE_SKIPLOCKED)
+          .setMaxResults(criteriaParams.limit));
     }
 
-    List<T> getLockedForWrite(List<Long> ids) {
-      return getLocked(ids, LockMode.UPGRADE_NOWAIT);
+    T save(Session session, T entity) {
+      return persist(session, entity);
     }
 
-    T save(T entity) {
-      return persist(entity);
+    List<T> save(Session session, List<T> entities) {
+      return persist(session, entities);
     }
 
-    List<T> save(List<T> entities) {
-      return persist(entities);
+    void update(Session session, T entity) {
+      session.evict(entity); //Detach .. otherwise update is a no-op
+      session.update(entity);
     }
 
-    void update(T entity) {
-      currentSession().evict(entity); //Detach .. otherwise update is a no-op
-      currentSession().update(entity);
+    /**
+     * Copies the properties in which a different instance returned by the updater differs onto the loaded one, a
+     * different version fails like a stale merge. The flush compares the loaded entity with the state it was read with
+     * and, as the entity uses dynamic update, writes only the changed columns through Hibernate's regular update:
+     * entity callbacks, event listeners, interceptors, JDBC batching, version checks and second level cache
+     * invalidation all apply. Nothing is written when nothing changed.
+     */
+    void updateChanged(Session session, T loaded, T entity) {
+      if (entity == loaded) {
+        return;
+      }
+      SessionImplementor sessionImplementor = session.unwrap(SessionImplementor.class);
+      EntityPersister persister = sessionImplementor.getEntityPersister(null, loaded);
+      Object[] values = persister.getPropertyValues(entity);
+      Object[] current = persister.getPropertyValues(loaded);
+      if (!Objects.equals(metadata.getVersion(entity), metadata.getVersion(loaded))) {
+        throw new StaleObjectStateException(persister.getEntityName(), (Serializable) metadata.getId(loaded));
+      }
+      // Only the differing properties, writing every property would mark all of them dirty on enhanced entities
+      int[] changed = persister.findDirty(values, current, loaded, sessionImplementor);
+      if (changed != null) {
+        String[] names = persister.getPropertyNames();
+        for (int i : changed) {
+          persister.setPropertyValue(loaded, i, values[i]);
+          // The persister writes the field directly, which bypasses the tracking of enhanced entities
+          if (loaded instanceof SelfDirtinessTracker) {
+            ((SelfDirtinessTracker) loaded).$$_hibernate_trackChange(names[i]);
+          }
+        }
+      }
     }
 
-    List<T> select(DetachedCriteria criteria) {
-      return list(criteria.getExecutableCriteria(currentSession()));
+    boolean isDynamicUpdate() {
+      return sessionFactory.unwrap(SessionFactoryImplementor.class)
+          .getMetamodel()
+          .entityPersister(entityClass)
+          .getEntityMetamodel()
+          .isDynamicUpdate();
     }
 
-    public List<T> select(final QueryParams queryParams) {
-      Query<T> tQuery = currentSession().createQuery(queryParams.query, getEntityClass());
+    List<T> select(Session session, DetachedCriteria criteria) {
+      return list(criteria.getExecutableCriteria(session));
+    }
+
+    public List<T> select(Session session, final QueryParams queryParams) {
+      Query<T> tQuery = session.createQuery(queryParams.query, getEntityClass());
       if (queryParams.params != null)
         queryParams.params.forEach(tQuery::setParameter);
       return tQuery.getResultList();
     }
 
-    public List<T> select(CriteriaParams criteriaParams) {
-      Criteria exeCriteria = criteriaParams.criteria.getExecutableCriteria(currentSession());
+    public List<T> select(Session session, CriteriaParams criteriaParams) {
+      Criteria exeCriteria = criteriaParams.criteria.getExecutableCriteria(session);
       if (criteriaParams.limit != -1)
         exeCriteria.setMaxResults(criteriaParams.limit);
       if (criteriaParams.offset != -1)
         exeCriteria.setFirstResult(criteriaParams.offset);
       if (!Strings.isNullOrEmpty(criteriaParams.fetchProfile)) {
-        currentSession().enableFetchProfile(criteriaParams.fetchProfile);
+        session.enableFetchProfile(criteriaParams.fetchProfile);
       }
       return list(exeCriteria);
     }
 
-    public T selectSingle(DetachedCriteria criteria) {
-      return uniqueResult(criteria.getExecutableCriteria(currentSession()));
-    }
-
-    long count(DetachedCriteria criteria) {
-      return (long) criteria.getExecutableCriteria(currentSession())
-          .setProjection(Projections.rowCount())
-          .uniqueResult();
+    public T selectSingle(Session session, DetachedCriteria criteria) {
+      return uniqueResult(criteria.getExecutableCriteria(session));
     }
 
-    BigDecimal sum(DetachedCriteria criteria) {
-      return (BigDecimal) criteria.getExecutableCriteria(currentSession())
+    BigDecimal sum(Session session, DetachedCriteria criteria) {
+      return (BigDecimal) criteria.getExecutableCriteria(session)
           .uniqueResult();
     }
 
-    Long max(MaxParams maxParams) {
-      return (Long) maxParams.criteria.getExecutableCriteria(currentSession())
+    Long max(Session session, MaxParams maxParams) {
+      return (Long) maxParams.criteria.getExecutableCriteria(session)
           .setProjection(Projections.max(maxParams.propertyName))
           .uniqueResult();
     }
 
-    public int update(QueryParams updateParams) {
+    public int update(Session session, QueryParams updateParams) {
       if (updateParams.nativeQuery) {
-        var tQuery = currentSession().createSQLQuery(updateParams.query);
+        var tQuery = session.createSQLQuery(updateParams.query);
         updateParams.params.forEach(tQuery::setParameter);
         return tQuery.executeUpdate();
       } else {
-        var tQuery = currentSession().createQuery(updateParams.query);
+        var tQuery = session.createQuery(updateParams.query);
         updateParams.params.forEach(tQuery::setParameter);
         return tQuery.executeUpdate();
       }
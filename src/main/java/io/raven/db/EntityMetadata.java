@@ -0,0 +1,300 @@
+package io.raven.db;
+
+import com.google.common.base.Preconditions;
+import com.google.common.primitives.Primitives;
+import lombok.Getter;
+import org.apache.commons.lang3.reflect.FieldUtils;
+import org.hibernate.engine.spi.ManagedEntity;
+import org.hibernate.engine.spi.SelfDirtinessTracker;
+
+import javax.persistence.EmbeddedId;
+import javax.persistence.Id;
+import javax.persistence.IdClass;
+import javax.persistence.Transient;
+import javax.persistence.Version;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.io.Serializable;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Mapping metadata of an entity class with precompiled accessors for the id, the version and the mapped fields. Built
+ * lazily on the first lookup of an entity class and shared by every dao of that class, so the hot path reads ids and
+ * versions without reflective field access.
+ * <p>
+ * Ids can be a single {@link Id} field of any type, an {@link EmbeddedId} or an {@link IdClass} composite made of
+ * several {@link Id} fields. Numeric ids additionally get an unboxed {@code long} accessor.
+ */
+public final class EntityMetadata<T> {
+
+  private static final ClassValue<EntityMetadata<?>> REGISTRY = new ClassValue<>() {
+    @Override
+    protected EntityMetadata<?> computeValue(Class<?> type) {
+      return new EntityMetadata<>(type);
+    }
+  };
+
+  private static final MethodType GETTER = MethodType.methodType(Object.class, Object.class);
+  private static final MethodType LONG_GETTER = MethodType.methodType(long.class, Object.class);
+  private static final MethodType SETTER = MethodType.methodType(void.class, Object.class, Object.class);
+
+  @Getter
+  private final Class<T> entityClass;
+
+  /**
+   * The {@link Id} or {@link EmbeddedId} field, null for {@link IdClass} composites (see {@link #getIdFields()})
+   */
+  @Getter
+  private final Field idField;
+
+  @Getter
+  private final List<Field> idFields;
+
+  @Getter
+  private final Class<?> idType;
+
+  @Getter
+  private final Field versionField;
+
+  private final MethodHandle idGetter;
+  private final MethodHandle longIdGetter;
+  private final MethodHandle idSetter;
+  private final MethodHandle[] idClassGetters;
+  private final MethodHandle[] idClassSetters;
+  private final Constructor<?> idClassConstructor;
+  private final MethodHandle versionGetter;
+  private final Map<String, MethodHandle> getters;
+  private final Map<String, MethodHandle> setters;
+
+  private EntityMetadata(Class<T> entityClass) {
+    this.entityClass = entityClass;
+    IdClass idClass = entityClass.getAnnotation(IdClass.class);
+    List<Field> fields = new ArrayList<>(FieldUtils.getFieldsListWithAnnotation(entityClass, Id.class));
+    fields.addAll(FieldUtils.getFieldsListWithAnnotation(entityClass, EmbeddedId.class));
+    Preconditions.checkArgument(!fields.isEmpty(), "At least one field needs to be sharding keys");
+    Preconditions.checkArgument(fields.size() == 1 || idClass != null, "Only one field can be sharding keys");
+    this.idFields = Collections.unmodifiableList(fields);
+    this.idField = idClass == null ? fields.get(0) : null;
+    this.idType = idClass == null ? idField.getType() : idClass.value();
+    Field[] versionFields = FieldUtils.getFieldsWithAnnotation(entityClass, Version.class);
+    this.versionField = versionFields.length == 0 ? null : versionFields[0];
+    try {
+      MethodHandles.Lookup lookup = MethodHandles.lookup();
+      if (idClass == null) {
+        this.idGetter = getter(lookup, idField);
+        this.idSetter = setter(lookup, idField);
+        this.idClassGetters = null;
+        this.idClassSetters = null;
+        this.idClassConstructor = null;
+      } else {
+        this.idGetter = null;
+        this.idSetter = null;
+        this.idClassGetters = new MethodHandle[fields.size()];
+        this.idClassSetters = new MethodHandle[fields.size()];
+        for (int i = 0; i < fields.size(); i++) {
+          Field keyField = FieldUtils.getField(idType, fields.get(i).getName(), true);
+          Preconditions.checkArgument(keyField != null, "%s has no field %s", idType.getSimpleName(),
+              fields.get(i).getName());
+          this.idClassGetters[i] = getter(lookup, keyField);
+          this.idClassSetters[i] = setter(lookup, keyField);
+        }
+        this.idClassConstructor = idType.getDeclaredConstructor();
+        this.idClassConstructor.setAccessible(true);
+      }
+      this.longIdGetter = isLong(idType)
+          ? getter(lookup, idField).asType(LONG_GETTER)
+          : null;
+      this.versionGetter = versionField == null ? null : getter(lookup, versionField);
+      Map<String, MethodHandle> fieldGetters = new LinkedHashMap<>();
+      Map<String, MethodHandle> fieldSetters = new LinkedHashMap<>();
+      for (Field field : FieldUtils.getAllFieldsList(entityClass)) {
+        if (isMapped(field)) {
+          fieldGetters.put(field.getName(), getter(lookup, field));
+          fieldSetters.put(field.getName(), setter(lookup, field));
+        }
+      }
+      this.getters = Collections.unmodifiableMap(fieldGetters);
+      this.setters = Collections.unmodifiableMap(fieldSetters);
+    } catch (IllegalAccessException | NoSuchMethodException e) {
+      throw new UnimatrixRuntimeException(e);
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  public static <T> EntityMetadata<T> of(Class<T> entityClass) {
+    return (EntityMetadata<T>) REGISTRY.get(entityClass);
+  }
+
+  /**
+   * @return Name of the id property to query by, null for {@link IdClass} composites
+   */
+  public String getIdName() {
+    return idField == null ? null : idField.getName();
+  }
+
+  public boolean isLongId() {
+    return longIdGetter != null;
+  }
+
+  public boolean isVersioned() {
+    return versionField != null;
+  }
+
+  /**
+   * @return true if the class was bytecode enhanced at build time
+   */
+  public boolean isEnhanced() {
+    return ManagedEntity.class.isAssignableFrom(entityClass);
+  }
+
+  /**
+   * @return true if the enhanced class tracks its own dirty attributes, so flushes skip the snapshot comparison
+   */
+  public boolean isDirtyTracking() {
+    return SelfDirtinessTracker.class.isAssignableFrom(entityClass);
+  }
+
+  /**
+   * @return Names of the mapped (persistent) fields including the id and version
+   */
+  public Set<String> getProperties() {
+    return getters.keySet();
+  }
+
+  public boolean isCompositeId() {
+    return idField == null || idField.isAnnotationPresent(EmbeddedId.class);
+  }
+
+  /**
+   * @return The id of the entity, an instance of the {@link IdClass} for composites built from the id fields
+   */
+  public Object getId(T entity) {
+    try {
+      if (idGetter != null) {
+        return (Object) idGetter.invokeExact((Object) entity);
+      }
+      Object id = idClassConstructor.newInstance();
+      for (int i = 0; i < idClassGetters.length; i++) {
+        idClassSetters[i].invokeExact(id, (Object) getters.get(idFields.get(i).getName()).invokeExact((Object) entity));
+      }
+      return id;
+    } catch (Throwable t) {
+      throw propagate(t);
+    }
+  }
+
+  /**
+   * Fast path for numeric ids which does not box the key.
+   */
+  public long getLongId(T entity) {
+    Preconditions.checkState(longIdGetter != null, "Id of %s is not numeric", entityClass.getSimpleName());
+    try {
+      return (long) longIdGetter.invokeExact((Object) entity);
+    } catch (Throwable t) {
+      throw propagate(t);
+    }
+  }
+
+  public void setId(T entity, Object id) {
+    try {
+      if (idSetter != null) {
+        idSetter.invokeExact((Object) entity, id);
+        return;
+      }
+      for (int i = 0; i < idClassGetters.length; i++) {
+        setters.get(idFields.get(i).getName()).invokeExact((Object) entity, (Object) idClassGetters[i].invokeExact(id));
+      }
+    } catch (Throwable t) {
+      throw propagate(t);
+    }
+  }
+
+  /**
+   * Checks that a key passed in by a caller matches the id type of the entity.
+   *
+   * @return The key as Hibernate expects it
+   */
+  public Serializable toKey(Object key) {
+    Preconditions.checkArgument(key != null, "Key of %s can not be null", entityClass.getSimpleName());
+    Preconditions.checkArgument(Primitives.wrap(idType).isInstance(key) && key instanceof Serializable,
+        "Key of type %s does not match id type %s of %s", key.getClass().getSimpleName(), idType.getSimpleName(),
+        entityClass.getSimpleName());
+    return (Serializable) key;
+  }
+
+  public Object getVersion(T entity) {
+    if (versionGetter == null) {
+      return null;
+    }
+    try {
+      return (Object) versionGetter.invokeExact((Object) entity);
+    } catch (Throwable t) {
+      throw propagate(t);
+    }
+  }
+
+  public Object get(T entity, String property) {
+    try {
+      return (Object) accessor(getters, property).invokeExact((Object) entity);
+    } catch (Throwable t) {
+      throw propagate(t);
+    }
+  }
+
+  public void set(T entity, String property, Object value) {
+    try {
+      accessor(setters, property).invokeExact((Object) entity, value);
+    } catch (Throwable t) {
+      throw propagate(t);
+    }
+  }
+
+  private MethodHandle accessor(Map<String, MethodHandle> accessors, String property) {
+    MethodHandle handle = accessors.get(property);
+    Preconditions.checkArgument(handle != null, "%s is not a mapped property of %s", property,
+        entityClass.getSimpleName());
+    return handle;
+  }
+
+  private static MethodHandle getter(MethodHandles.Lookup lookup, Field field) throws IllegalAccessException {
+    field.setAccessible(true);
+    return lookup.unreflectGetter(field).asType(GETTER);
+  }
+
+  private static MethodHandle setter(MethodHandles.Lookup lookup, Field field) throws IllegalAccessException {
+    field.setAccessible(true);
+    return lookup.unreflectSetter(field).asType(SETTER);
+  }
+
+  private static boolean isLong(Class<?> type) {
+    return type == long.class || type == Long.class;
+  }
+
+  private static boolean isMapped(Field field) {
+    int modifiers = field.getModifiers();
+    return !Modifier.isStatic(modifiers)
+        && !Modifier.isTransient(modifiers)
+        && !Modifier.isFinal(modifiers)
+        && !field.isAnnotationPresent(Transient.class)
+        && !field.isSynthetic();
+  }
+
+  private static RuntimeException propagate(Throwable t) {
+    if (t instanceof RuntimeException runtimeException) {
+      return runtimeException;
+    }
+    if (t instanceof Error error) {
+      throw error;
+    }
+    return new UnimatrixRuntimeException((Exception) t);
+  }
+}
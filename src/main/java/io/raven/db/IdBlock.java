@@ -0,0 +1,30 @@
+package io.raven.db;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.Table;
+
+/**
+ * Next unallocated value of each {@link PooledIdGenerator}. Registered automatically when a pooled generator is used;
+ * without schema creation the table has to exist:
+ * {@code create table unimatrix_id_block (name varchar(255) not null primary key, next_value bigint not null)}
+ */
+@Entity
+@Table(name = "unimatrix_id_block")
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class IdBlock {
+
+  @Id
+  @Column(name = "name")
+  private String name;
+
+  @Column(name = "next_value", nullable = false)
+  private long nextValue;
+}
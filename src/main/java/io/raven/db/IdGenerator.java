@@ -0,0 +1,25 @@
+package io.raven.db;
+
+import org.hibernate.SessionFactory;
+
+/**
+ * Allocates numeric entity ids in process, so inserts need no sequence or identity round trip and stay JDBC batchable.
+ * Generators are registered per entity class with {@code UniMatrix.builder().idGenerator(entityClass, generator)} and
+ * the entity maps its id to them with
+ * <pre>
+ * &#64;Id
+ * &#64;GeneratedValue(generator = "unimatrix")
+ * &#64;GenericGenerator(name = "unimatrix", strategy = UniMatrixIdentifierGenerator.STRATEGY)
+ * private long id;
+ * </pre>
+ */
+public interface IdGenerator {
+
+  long nextId();
+
+  /**
+   * Called once the session factory is built, for generators which need database access.
+   */
+  default void initialize(SessionFactory sessionFactory) {
+  }
+}
@@ -0,0 +1,296 @@
+package io.raven.db;
+
+import com.google.common.base.Preconditions;
+import com.google.common.hash.BloomFilter;
+import com.google.common.hash.Funnels;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.hibernate.ScrollMode;
+import org.hibernate.ScrollableResults;
+import org.hibernate.SessionFactory;
+import org.hibernate.criterion.DetachedCriteria;
+import org.hibernate.criterion.Projections;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.event.service.spi.EventListenerRegistry;
+import org.hibernate.event.spi.EventType;
+import org.hibernate.event.spi.PostInsertEvent;
+import org.hibernate.event.spi.PostInsertEventListener;
+import org.hibernate.persister.entity.EntityPersister;
+
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bloom filter over the ids of a long id entity, so {@code EntityDao.get} and {@code exists} answer lookups of ids
+ * which were never inserted without a transaction. Filters are registered per entity class with
+ * {@code UniMatrix.builder().lookupFilter(entityClass, new NegativeLookupFilter(expectedIds, falsePositiveRate))}.
+ * <p>
+ * The filter is built from an id scan on a background thread once the session factory started, and every insert
+ * through the session factory adds its id. Until the first scan finished every id is looked up in the database. The
+ * filter is only correct when all inserts of the entity go through this session factory: rows inserted by native
+ * SQL, other processes or other session factories are reported as absent by {@code get} and {@code exists} until the
+ * next {@link #rebuild()}, which is why filters need {@link UniMatrixConfig#isExclusiveInserts()}. Deleted ids stay in
+ * the filter and are looked up in the database like false positives until the next rebuild.
+ */
+@Slf4j
+public class NegativeLookupFilter {
+
+  private static final int SCAN_FETCH_SIZE = 1000;
+
+  @Getter
+  private final long expectedIds;
+  @Getter
+  private final double falsePositiveRate;
+
+  private SessionFactory sessionFactory;
+  private Class<?> entityClass;
+  private volatile BloomFilter<Long> filter;
+  /**
+   * Filter of a running rebuild, receives the inserts which the scan may not see
+   */
+  private volatile BloomFilter<Long> building;
+  private final CountDownLatch initialized = new CountDownLatch(1);
+
+  private final LongAdder checks = new LongAdder();
+  private final LongAdder negatives = new LongAdder();
+  private final LongAdder falsePositives = new LongAdder();
+  private final LongAdder rebuilds = new LongAdder();
+
+  /**
+   * @param expectedIds       Number of ids the filter is sized for, the false positive rate rises beyond it
+   * @param falsePositiveRate Share of absent ids which still reach the database while the filter holds at most
+   *                          {@code expectedIds} ids
+   */
+  public NegativeLookupFilter(long expectedIds, double falsePositiveRate) {
+    Preconditions.checkArgument(expectedIds > 0, "Expected ids must be positive");
+    Preconditions.checkArgument(falsePositiveRate > 0 && falsePositiveRate < 1,
+        "False positive rate must be between 0 and 1");
+    this.expectedIds = expectedIds;
+    this.falsePositiveRate = falsePositiveRate;
+  }
+
+  /**
+   * Called once the session factory is built, starts the initial scan without holding up the bootstrap
+   */
+  void initialize(SessionFactory sessionFactory, Class<?> entityClass) {
+    check(entityClass);
+    this.sessionFactory = sessionFactory;
+    this.entityClass = entityClass;
+    Thread thread = new Thread(this::initialBuild, "unimatrix-lookup-filter-" + entityClass.getSimpleName());
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  private void initialBuild() {
+    try {
+      rebuild();
+    } catch (Exception e) {
+      // Lookups keep going to the database until a rebuild succeeds
+      log.warn("Could not build the lookup filter of {}", entityClass.getSimpleName(), e);
+    } finally {
+      initialized.countDown();
+    }
+  }
+
+  static void check(Class<?> entityClass) {
+    Preconditions.checkArgument(EntityMetadata.of(entityClass).isLongId(), "%s does not have a long id",
+        entityClass.getSimpleName());
+  }
+
+  /**
+   * Replaces the filter with one built from a fresh id scan, dropping deleted ids. Lookups keep using the current
+   * filter while the scan runs. Inserts flushed meanwhile go to both filters, and inserts committed after the scan
+   * read the table reach the new filter through the post commit listener, see {@link #register}.
+   */
+  public synchronized void rebuild() throws UniMatrixException {
+    Preconditions.checkState(sessionFactory != null, "Lookup filter is not registered with a UniMatrix");
+    long start = System.nanoTime();
+    BloomFilter<Long> next = BloomFilter.create(Funnels.longFunnel(), expectedIds, falsePositiveRate);
+    building = next;
+    try {
+      long scanned = TransactionManager.newTransaction()
+          .sessionFactory(sessionFactory)
+          .readOnly(true)
+          .build()
+          .executeInSession((session, target) -> {
+            long count = 0;
+            try (ScrollableResults ids = DetachedCriteria.forClass(entityClass)
+                .getExecutableCriteria(session)
+                .setProjection(Projections.id())
+                .setFetchSize(SCAN_FETCH_SIZE)
+                .scroll(ScrollMode.FORWARD_ONLY)) {
+              while (ids.next()) {
+                target.put(((Number) ids.get(0)).longValue());
+                count++;
+              }
+            }
+            return count;
+          }, next);
+      filter = next;
+      rebuilds.increment();
+      log.debug("Built lookup filter of {} with {} ids in {}ms", entityClass.getSimpleName(), scanned,
+          TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+    } finally {
+      building = null;
+    }
+  }
+
+  /**
+   * Reads the rebuild's filter first: {@link #rebuild()} publishes the new filter before it clears {@code building}, so
+   * an add which misses {@code building} sees the new filter.
+   */
+  void add(long id) {
+    BloomFilter<Long> next = building;
+    if (next != null) {
+      next.put(id);
+    }
+    BloomFilter<Long> current = filter;
+    if (current != null && current != next) {
+      current.put(id);
+    }
+  }
+
+  /**
+   * @return False when the id was certainly never inserted
+   */
+  boolean mightContain(long id) {
+    BloomFilter<Long> current = filter;
+    if (current == null) {
+      return true;
+    }
+    checks.increment();
+    if (current.mightContain(id)) {
+      return true;
+    }
+    negatives.increment();
+    return false;
+  }
+
+  /**
+   * Records the database result of an id which passed the filter
+   */
+  void recordLookup(boolean found) {
+    if (!found && filter != null) {
+      falsePositives.increment();
+    }
+  }
+
+  public boolean isReady() {
+    return filter != null;
+  }
+
+  /**
+   * Waits for the initial scan
+   *
+   * @return true if the filter is ready, false if the scan failed or is still running after the timeout
+   */
+  public boolean awaitReady(long timeout, TimeUnit unit) throws InterruptedException {
+    return initialized.await(timeout, unit) && isReady();
+  }
+
+  /**
+   * @return Lookups checked against the filter
+   */
+  public long getChecks() {
+    return checks.sum();
+  }
+
+  /**
+   * @return Lookups answered by the filter without a transaction
+   */
+  public long getNegatives() {
+    return negatives.sum();
+  }
+
+  /**
+   * @return Lookups which passed the filter but found no row
+   */
+  public long getFalsePositives() {
+    return falsePositives.sum();
+  }
+
+  /**
+   * @return Observed share of absent ids which passed the filter
+   */
+  public double getObservedFalsePositiveRate() {
+    long falsePositive = falsePositives.sum();
+    long absent = falsePositive + negatives.sum();
+    return absent == 0 ? 0 : (double) falsePositive / absent;
+  }
+
+  /**
+   * @return False positive rate the filter should have with the ids it holds now
+   */
+  public double getExpectedFalsePositiveRate() {
+    BloomFilter<Long> current = filter;
+    return current == null ? 1 : current.expectedFpp();
+  }
+
+  public long getApproximateIds() {
+    BloomFilter<Long> current = filter;
+    return current == null ? 0 : current.approximateElementCount();
+  }
+
+  public long getRebuilds() {
+    return rebuilds.sum();
+  }
+
+  @Override
+  public String toString() {
+    return String.format("%s: %d checks, %d negatives, %d false positives (%.4f observed, %.4f expected), ~%d ids",
+        entityClass == null ? "unregistered" : entityClass.getSimpleName(), getChecks(), getNegatives(),
+        getFalsePositives(), getObservedFalsePositiveRate(), getExpectedFalsePositiveRate(), getApproximateIds());
+  }
+
+  /**
+   * Adds the id of every insert of a filtered entity to its filter, once when the insert is flushed so the id is in the
+   * filter before the row becomes visible, and again after the commit. The second add covers rebuilds: a row flushed
+   * before a rebuild started but committed after its scan read the table is in neither the scan nor the old filter's
+   * replacement otherwise.
+   */
+  static void register(SessionFactory sessionFactory, Map<Class<?>, NegativeLookupFilter> filters) {
+    if (filters.isEmpty()) {
+      return;
+    }
+    EventListenerRegistry registry = sessionFactory.unwrap(SessionFactoryImplementor.class)
+        .getServiceRegistry()
+        .getService(EventListenerRegistry.class);
+    registry.appendListeners(EventType.POST_INSERT, new InsertListener(sessionFactory, false));
+    registry.appendListeners(EventType.POST_COMMIT_INSERT, new InsertListener(sessionFactory, true));
+  }
+
+  private static final class InsertListener implements PostInsertEventListener {
+
+    private final SessionFactory sessionFactory;
+    private final boolean postCommit;
+
+    private InsertListener(SessionFactory sessionFactory, boolean postCommit) {
+      this.sessionFactory = sessionFactory;
+      this.postCommit = postCommit;
+    }
+
+    @Override
+    public void onPostInsert(PostInsertEvent event) {
+      NegativeLookupFilter filter = UniMatrix.lookupFilter(sessionFactory, event.getEntity().getClass());
+      if (filter != null && event.getId() instanceof Number id) {
+        filter.add(id.longValue());
+      }
+    }
+
+    @Override
+    public boolean requiresPostCommitHandling(EntityPersister persister) {
+      return postCommit && UniMatrix.lookupFilter(sessionFactory, persister.getMappedClass()) != null;
+    }
+
+    /**
+     * Still abstract in Hibernate 5.6, {@link #requiresPostCommitHandling} is the method Hibernate calls
+     */
+    @Override
+    @Deprecated
+    public boolean requiresPostCommitHanding(EntityPersister persister) {
+      return requiresPostCommitHandling(persister);
+    }
+  }
+}
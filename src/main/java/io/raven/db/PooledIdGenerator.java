@@ -0,0 +1,122 @@
+package io.raven.db;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Strings;
+import lombok.Builder;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.hibernate.LockMode;
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.hibernate.Transaction;
+import org.hibernate.exception.ConstraintViolationException;
+
+import javax.persistence.PersistenceException;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Pooled-lo allocator backed by the {@link IdBlock} table. Each round trip reserves a block of {@code blockSize} ids
+ * in its own short transaction; ids within the block are handed out locally. Several processes can share a name, each
+ * gets disjoint blocks. Ids are unique but only increasing within a process, and unused ids of a block are lost on
+ * restart.
+ * <p>
+ * Block allocation opens a separate session, so it needs a second pooled connection while the inserting transaction
+ * holds its own.
+ */
+@Slf4j
+public class PooledIdGenerator implements IdGenerator {
+
+  private static final int ALLOCATION_ATTEMPTS = 3;
+
+  @Getter
+  private final String name;
+
+  @Getter
+  private final int blockSize;
+
+  private final long initialValue;
+
+  private final ReentrantLock lock = new ReentrantLock();
+
+  private SessionFactory sessionFactory;
+  private long next;
+  private long limit;
+
+  @Builder
+  public PooledIdGenerator(String name, int blockSize, long initialValue) {
+    Preconditions.checkArgument(!Strings.isNullOrEmpty(name), "Generator name is required");
+    Preconditions.checkArgument(blockSize > 0, "Block size must be positive");
+    this.name = name;
+    this.blockSize = blockSize;
+    this.initialValue = initialValue == 0 ? 1 : initialValue;
+  }
+
+  @Override
+  public void initialize(SessionFactory sessionFactory) {
+    this.sessionFactory = sessionFactory;
+  }
+
+  @Override
+  public long nextId() {
+    lock.lock();
+    try {
+      if (next >= limit) {
+        allocate();
+      }
+      return next++;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private void allocate() {
+    Preconditions.checkState(sessionFactory != null, "Generator %s is not registered with UniMatrix", name);
+    for (int attempt = 1; ; attempt++) {
+      try {
+        long low = reserveBlock();
+        next = low;
+        limit = low + blockSize;
+        log.debug("Allocated ids {} to {} for {}", next, limit - 1, name);
+        return;
+      } catch (PersistenceException e) {
+        // A constraint violation means another process created the row first
+        if (!isConstraintViolation(e) || attempt == ALLOCATION_ATTEMPTS) {
+          throw new UnimatrixRuntimeException(e);
+        }
+      }
+    }
+  }
+
+  private long reserveBlock() {
+    try (Session session = sessionFactory.openSession()) {
+      Transaction transaction = session.beginTransaction();
+      try {
+        IdBlock block = session.get(IdBlock.class, name, LockMode.PESSIMISTIC_WRITE);
+        long low;
+        if (block == null) {
+          low = initialValue;
+          session.persist(new IdBlock(name, low + blockSize));
+        } else {
+          low = block.getNextValue();
+          block.setNextValue(low + blockSize);
+        }
+        transaction.commit();
+        return low;
+      } catch (RuntimeException e) {
+        if (transaction.isActive()) {
+          transaction.rollback();
+        }
+        throw e;
+      }
+    }
+  }
+
+  private static boolean isConstraintViolation(Throwable e) {
+    for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+      if (cause instanceof ConstraintViolationException) {
+        return true;
+      }
+    }
+    return false;
+  }
+}
@@ -0,0 +1,156 @@
+package io.raven.db;
+
+import com.google.common.base.Preconditions;
+import com.google.common.primitives.Longs;
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.hibernate.criterion.DetachedCriteria;
+
+import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.function.Function;
+
+/**
+ * Runs several reads, possibly of different entities, in one read only transaction on one connection. Reads are
+ * registered first and return a {@link Result} handle which holds the value once {@link #execute()} ran.
+ * <pre>
+ *   ReadBatch batch = new ReadBatch(sessionFactory);
+ *   ReadBatch.Result&lt;Optional&lt;Order&gt;&gt; order = batch.get(orderDao, orderId);
+ *   ReadBatch.Result&lt;Long&gt; count = batch.count(lineDao, criteria);
+ *   batch.execute();
+ *   order.get();
+ * </pre>
+ * With {@link #snapshot(boolean)} the transaction runs with repeatable read isolation, so every read of the batch sees
+ * the same committed state.
+ */
+public class ReadBatch {
+
+  private final SessionFactory sessionFactory;
+  private final List<Result<?>> reads = new ArrayList<>();
+  private boolean snapshot;
+  private int queryTimeout;
+  private int timeout;
+
+  public ReadBatch(SessionFactory sessionFactory) {
+    this.sessionFactory = sessionFactory;
+  }
+
+  public ReadBatch snapshot(boolean snapshot) {
+    this.snapshot = snapshot;
+    return this;
+  }
+
+  public ReadBatch queryTimeout(int queryTimeout) {
+    this.queryTimeout = queryTimeout;
+    return this;
+  }
+
+  public ReadBatch timeout(int timeout) {
+    this.timeout = timeout;
+    return this;
+  }
+
+  public <T> Result<Optional<T>> get(EntityDao<T> dao, Long id) {
+    return getByKey(dao, id);
+  }
+
+  /**
+   * Generic key variant of {@link #get(EntityDao, Long)}, see {@link EntityDao#getByKey(Object)}
+   */
+  public <T> Result<Optional<T>> getByKey(EntityDao<T> dao, Object key) {
+    return add(session -> dao.get(session, dao.getMetadata().toKey(key)));
+  }
+
+  public <T> Result<List<T>> get(EntityDao<T> dao, long[] ids) {
+    return add(session -> dao.get(session, Longs.asList(ids)));
+  }
+
+  public Result<Long> count(EntityDao<?> dao, DetachedCriteria criteria) {
+    return add(session -> dao.count(session, criteria));
+  }
+
+  public <T> Result<List<T>> select(EntityDao<T> dao, DetachedCriteria criteria) {
+    return select(dao, criteria, -1, -1);
+  }
+
+  public <T> Result<List<T>> select(EntityDao<T> dao, DetachedCriteria criteria, int limit, int offset) {
+    EntityDao.CriteriaParams params = EntityDao.CriteriaParams.builder()
+        .criteria(criteria)
+        .limit(limit)
+        .offset(offset)
+        .build();
+    return add(session -> dao.select(session, params));
+  }
+
+  public <T> Result<List<T>> select(EntityDao<T> dao, String query, Map<String, Object> params) {
+    EntityDao.QueryParams queryParams = EntityDao.QueryParams.builder()
+        .query(query)
+        .params(params)
+        .build();
+    return add(session -> dao.select(session, queryParams));
+  }
+
+  /**
+   * Registers an arbitrary read against the batch's session
+   */
+  public <R> Result<R> add(Function<Session, R> read) {
+    Result<R> result = new Result<>(read);
+    reads.add(result);
+    return result;
+  }
+
+  /**
+   * Runs the registered reads in registration order. A failing read fails the whole batch and no result is set.
+   */
+  public void execute() throws UniMatrixException {
+    Preconditions.checkState(reads.stream().noneMatch(Result::isDone), "Read batch was already executed");
+    List<Object> values = TransactionManager.newTransaction()
+        .readOnly(true)
+        .sessionFactory(sessionFactory)
+        .queryTimeout(queryTimeout)
+        .timeout(timeout)
+        .isolation(snapshot ? Connection.TRANSACTION_REPEATABLE_READ : Connection.TRANSACTION_NONE)
+        .build()
+        .executeInSession(this::read, reads);
+    for (int i = 0; i < reads.size(); i++) {
+      reads.get(i).set(values.get(i));
+    }
+  }
+
+  private List<Object> read(Session session, List<Result<?>> batch) {
+    List<Object> values = new ArrayList<>(batch.size());
+    for (Result<?> result : batch) {
+      values.add(result.read.apply(session));
+    }
+    return values;
+  }
+
+  public static final class Result<R> {
+
+    private final Function<Session, R> read;
+    private R value;
+    private boolean done;
+
+    private Result(Function<Session, R> read) {
+      this.read = read;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void set(Object value) {
+      this.value = (R) value;
+      this.done = true;
+    }
+
+    public boolean isDone() {
+      return done;
+    }
+
+    public R get() {
+      Preconditions.checkState(done, "Read batch has not been executed");
+      return value;
+    }
+  }
+}
@@ -0,0 +1,51 @@
+package io.raven.db;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Attempt limit and exponential backoff with full jitter for retried operations. The pause before attempt {@code n + 1}
+ * is a random duration between zero and {@code min(maxBackoff, initialBackoff * 2^(n - 1))} milliseconds.
+ */
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class RetryPolicy {
+
+  @Builder.Default
+  private int maxAttempts = 5;
+
+  @Builder.Default
+  private long initialBackoff = 5;
+
+  @Builder.Default
+  private long maxBackoff = 200;
+
+  public boolean canRetry(int attempt) {
+    return attempt < maxAttempts;
+  }
+
+  /**
+   * @param attempt The attempt which just failed, starting at 1
+   * @return Milliseconds to wait before the next attempt
+   */
+  public long backoff(int attempt) {
+    long ceiling = Math.min(maxBackoff, initialBackoff << Math.min(attempt - 1, 30));
+    return ceiling <= 0 ? 0 : ThreadLocalRandom.current().nextLong(ceiling + 1);
+  }
+
+  /**
+   * Sleeps for the jittered backoff of the failed attempt.
+   */
+  public void pause(int attempt) throws InterruptedException {
+    long backoff = backoff(attempt);
+    if (backoff > 0) {
+      Thread.sleep(backoff);
+    }
+  }
+}
@@ -0,0 +1,161 @@
+package io.raven.db;
+
+import lombok.extern.slf4j.Slf4j;
+import org.hibernate.ScrollableResults;
+import org.hibernate.Session;
+
+import java.util.Objects;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Streams query results over a forward only cursor. Every subscription runs the query in its own read only
+ * transaction, which is opened on the first request and released on completion, error or cancellation. Rows are read
+ * from the cursor only as the subscriber requests them and are detached before they are emitted, so the session does
+ * not grow with the result.
+ * <p>
+ * Signals are emitted on the thread calling {@link Flow.Subscription#request(long)} and never concurrently.
+ */
+@Slf4j
+final class ScrollPublisher<T> implements Flow.Publisher<T> {
+
+  private final Supplier<TransactionManager> transactions;
+  private final Function<Session, ScrollableResults> query;
+
+  ScrollPublisher(Supplier<TransactionManager> transactions, Function<Session, ScrollableResults> query) {
+    this.transactions = transactions;
+    this.query = query;
+  }
+
+  @Override
+  public void subscribe(Flow.Subscriber<? super T> subscriber) {
+    Objects.requireNonNull(subscriber, "subscriber");
+    subscriber.onSubscribe(new ScrollSubscription(subscriber));
+  }
+
+  private final class ScrollSubscription implements Flow.Subscription {
+
+    private final Flow.Subscriber<? super T> subscriber;
+    private final AtomicInteger wip = new AtomicInteger();
+    private final AtomicLong requested = new AtomicLong();
+    private volatile boolean cancelled;
+    private volatile Throwable invalidRequest;
+
+    /*
+     * Only touched by the thread which owns the drain loop
+     */
+    private TransactionManager transactionManager;
+    private ScrollableResults results;
+    private long emitted;
+    private boolean done;
+
+    ScrollSubscription(Flow.Subscriber<? super T> subscriber) {
+      this.subscriber = subscriber;
+    }
+
+    @Override
+    public void request(long n) {
+      if (n <= 0) {
+        invalidRequest = new IllegalArgumentException("Requested " + n + " elements, must be positive");
+      } else {
+        requested.getAndAccumulate(n, (current, add) -> current + add < 0 ? Long.MAX_VALUE : current + add);
+      }
+      drain();
+    }
+
+    @Override
+    public void cancel() {
+      cancelled = true;
+      drain();
+    }
+
+    private void drain() {
+      if (wip.getAndIncrement() != 0) {
+        return;
+      }
+      int missed = 1;
+      do {
+        if (!done) {
+          emit();
+        }
+        missed = wip.addAndGet(-missed);
+      } while (missed != 0);
+    }
+
+    @SuppressWarnings("unchecked")
+    private void emit() {
+      try {
+        if (invalidRequest != null) {
+          fail(invalidRequest);
+          return;
+        }
+        while (!cancelled && emitted < requested.get()) {
+          if (results == null) {
+            open();
+          }
+          if (!results.next()) {
+            release(null);
+            subscriber.onComplete();
+            return;
+          }
+          T entity = (T) results.get(0);
+          transactionManager.getSession().evict(entity);
+          emitted++;
+          subscriber.onNext(entity);
+        }
+        if (cancelled) {
+          release(null);
+        }
+      } catch (Exception e) {
+        fail(e);
+      }
+    }
+
+    private void open() {
+      transactionManager = transactions.get();
+      transactionManager.beforeStart(false);
+      results = query.apply(transactionManager.getSession());
+    }
+
+    private void fail(Throwable t) {
+      try {
+        release(t instanceof Exception exception ? exception : new UnimatrixRuntimeException(t.getMessage(), t));
+      } catch (Exception e) {
+        log.debug("Error rolling back streaming transaction", e);
+      }
+      if (!cancelled) {
+        subscriber.onError(t);
+      }
+    }
+
+    /**
+     * Closes the cursor and ends the transaction, rolling back when the stream failed. A failure to commit propagates
+     * so that it is signalled instead of the completion.
+     */
+    private void release(Exception error) {
+      done = true;
+      if (transactionManager == null) {
+        return;
+      }
+      TransactionManager transaction = transactionManager;
+      transactionManager = null;
+      try {
+        if (results != null) {
+          results.close();
+        }
+      } catch (Exception e) {
+        log.debug("Error closing cursor", e);
+      } finally {
+        results = null;
+      }
+      if (error == null) {
+        transaction.afterEnd();
+      } else {
+        transaction.onError(error);
+      }
+    }
+  }
+}
@@ -0,0 +1,69 @@
+package io.raven.db;
+
+import org.hibernate.boot.registry.StandardServiceInitiator;
+import org.hibernate.cfg.AvailableSettings;
+import org.hibernate.engine.jdbc.internal.JdbcServicesImpl;
+import org.hibernate.engine.jdbc.spi.JdbcServices;
+import org.hibernate.engine.jdbc.spi.SqlStatementLogger;
+import org.hibernate.internal.util.config.ConfigurationHelper;
+import org.hibernate.service.spi.ServiceRegistryImplementor;
+
+import java.sql.Statement;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Statement logger which renders a statement only once it turned out to be slow. Hibernate's logger calls
+ * {@code Statement.toString()} after every execution and compares the execution time afterwards; drivers such as H2
+ * and MySQL render the SQL with its bound parameters there, which was about a third of the allocation of a single
+ * entity read. The threshold and the log output are the same as Hibernate's.
+ */
+final class SlowQueryLogger extends SqlStatementLogger {
+
+  /**
+   * Replaces Hibernate's jdbc services with ones which hand out this logger
+   */
+  static final StandardServiceInitiator<JdbcServices> INITIATOR = new StandardServiceInitiator<>() {
+    @Override
+    public JdbcServices initiateService(@SuppressWarnings("rawtypes") Map configurationValues,
+                                        ServiceRegistryImplementor registry) {
+      return new Services();
+    }
+
+    @Override
+    public Class<JdbcServices> getServiceInitiated() {
+      return JdbcServices.class;
+    }
+  };
+
+  private SlowQueryLogger(boolean logToStdout, boolean format, boolean highlight, long logSlowQuery) {
+    super(logToStdout, format, highlight, logSlowQuery);
+  }
+
+  @Override
+  public void logSlowQuery(Statement statement, long startTimeNanos) {
+    long threshold = getLogSlowQuery();
+    if (threshold >= 1 && TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTimeNanos) > threshold) {
+      super.logSlowQuery(statement, startTimeNanos);
+    }
+  }
+
+  private static final class Services extends JdbcServicesImpl {
+
+    private SqlStatementLogger logger;
+
+    @Override
+    public void configure(@SuppressWarnings("rawtypes") Map configValues) {
+      super.configure(configValues);
+      SqlStatementLogger configured = super.getSqlStatementLogger();
+      logger = new SlowQueryLogger(configured.isLogToStdout(), configured.isFormat(),
+          ConfigurationHelper.getBoolean(AvailableSettings.HIGHLIGHT_SQL, configValues, false),
+          configured.getLogSlowQuery());
+    }
+
+    @Override
+    public SqlStatementLogger getSqlStatementLogger() {
+      return logger;
+    }
+  }
+}
@@ -0,0 +1,72 @@
+package io.raven.db;
+
+import com.google.common.base.Preconditions;
+import lombok.Builder;
+import lombok.Getter;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/**
+ * Time ordered 64 bit ids made of 41 bits of milliseconds since the epoch, 10 bits of node id and a 12 bit sequence.
+ * Each node must have a distinct node id. The generator is lock free; when more than 4096 ids are requested within a
+ * millisecond, or the clock moves backwards, it keeps counting ahead of the clock instead of blocking, so ids stay
+ * unique and increasing on every node.
+ */
+public class SnowflakeIdGenerator implements IdGenerator {
+
+  private static final int NODE_BITS = 10;
+  private static final int SEQUENCE_BITS = 12;
+  private static final long MAX_NODE_ID = (1L << NODE_BITS) - 1;
+  private static final long SEQUENCE_MASK = (1L << SEQUENCE_BITS) - 1;
+
+  /**
+   * 2020-01-01T00:00:00Z
+   */
+  public static final long DEFAULT_EPOCH = 1577836800000L;
+
+  @Getter
+  private final long nodeId;
+
+  @Getter
+  private final long epoch;
+
+  private final LongSupplier clock;
+
+  /**
+   * Milliseconds since the epoch shifted left by the sequence bits, plus the sequence of the last id handed out
+   */
+  private final AtomicLong state = new AtomicLong();
+
+  @Builder
+  public SnowflakeIdGenerator(long nodeId, long epoch, LongSupplier clock) {
+    Preconditions.checkArgument(nodeId >= 0 && nodeId <= MAX_NODE_ID, "Node id must be between 0 and %s",
+        MAX_NODE_ID);
+    this.nodeId = nodeId;
+    this.epoch = epoch == 0 ? DEFAULT_EPOCH : epoch;
+    this.clock = clock == null ? System::currentTimeMillis : clock;
+  }
+
+  @Override
+  public long nextId() {
+    long next;
+    while (true) {
+      long last = state.get();
+      next = Math.max(last + 1, (clock.getAsLong() - epoch) << SEQUENCE_BITS);
+      if (state.compareAndSet(last, next)) {
+        break;
+      }
+    }
+    return (next >>> SEQUENCE_BITS) << (NODE_BITS + SEQUENCE_BITS)
+        | nodeId << SEQUENCE_BITS
+        | next & SEQUENCE_MASK;
+  }
+
+  public static long timestampOf(long id, long epoch) {
+    return (id >>> (NODE_BITS + SEQUENCE_BITS)) + epoch;
+  }
+
+  public static long nodeIdOf(long id) {
+    return (id >>> SEQUENCE_BITS) & MAX_NODE_ID;
+  }
+}
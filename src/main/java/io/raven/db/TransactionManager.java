@@ -2,48 +2,224 @@ package io.raven.db;
 
 import lombok.Builder;
 import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
 import org.hibernate.CacheMode;
 import org.hibernate.FlushMode;
 import org.hibernate.Session;
 import org.hibernate.SessionFactory;
 import org.hibernate.Transaction;
 import org.hibernate.context.internal.ManagedSessionContext;
+import org.hibernate.engine.spi.SessionImplementor;
 import org.hibernate.exception.ConstraintViolationException;
+import org.hibernate.resource.jdbc.spi.PhysicalConnectionHandlingMode;
 import org.hibernate.resource.transaction.spi.TransactionStatus;
 
+import java.sql.Connection;
 import java.util.function.Function;
 
+@Slf4j
 public class TransactionManager {
 
   private final SessionFactory sessionFactory;
   private final boolean readOnly;
+  private final int statementBudget;
+  private final int queryTimeout;
+  private final int timeout;
+  private final HandlerMode handlerMode;
+  private final int isolation;
 
   @Getter
   private Session session;
 
+  @Getter
+  private TransactionMonitor monitor;
+
+  private Session outerSession;
+  private boolean bound;
+  private int statementTimeout;
+  private long deadline;
+  private int previousIsolation;
 
-  @Builder(builderMethodName = "newTransaction")
   public TransactionManager(SessionFactory sessionFactory, boolean readOnly) {
+    this(sessionFactory, readOnly, 0, 0, 0);
+  }
+
+  /**
+   * @param statementBudget Maximum number of statements for this transaction; overrides the configured budget when
+   *                        positive
+   * @param queryTimeout    Statement timeout in milliseconds; overrides the configured query timeout when positive.
+   *                        JDBC applies timeouts in whole seconds, so the driver cancels a statement after the limit
+   *                        rounded up to a second plus up to one more second (150ms cancels after 1 to 2 seconds)
+   * @param timeout         Transaction deadline in milliseconds covering statement execution and commit; overrides the
+   *                        configured transaction timeout when positive. The deadline starts before the connection is
+   *                        acquired and is checked once it is, but the wait for a pooled connection itself is only
+   *                        bounded by the pool's {@code connectionTimeout}
+   */
+  public TransactionManager(SessionFactory sessionFactory, boolean readOnly, int statementBudget, int queryTimeout,
+                            int timeout) {
+    this(sessionFactory, readOnly, statementBudget, queryTimeout, timeout, null);
+  }
+
+  /**
+   * @param handlerMode When result handlers run; overrides the configured handler mode when set
+   */
+  public TransactionManager(SessionFactory sessionFactory, boolean readOnly, int statementBudget, int queryTimeout,
+                            int timeout, HandlerMode handlerMode) {
+    this(sessionFactory, readOnly, statementBudget, queryTimeout, timeout, handlerMode, Connection.TRANSACTION_NONE);
+  }
+
+  /**
+   * @param isolation JDBC isolation level of the transaction, {@link Connection#TRANSACTION_NONE} keeps the level of
+   *                  the pooled connection. It is set before the transaction begins and the previous level is restored
+   *                  on the same connection before it goes back to the pool
+   */
+  @Builder(builderMethodName = "newTransaction")
+  public TransactionManager(SessionFactory sessionFactory, boolean readOnly, int statementBudget, int queryTimeout,
+                            int timeout, HandlerMode handlerMode, int isolation) {
     this.sessionFactory = sessionFactory;
     this.readOnly = readOnly;
+    this.statementBudget = statementBudget;
+    this.queryTimeout = queryTimeout;
+    this.timeout = timeout;
+    this.handlerMode = handlerMode;
+    this.isolation = isolation;
   }
 
 
   public void beforeStart() {
-    session = sessionFactory.openSession();
+    begin(true);
+  }
+
+  /**
+   * @param bindSession false to keep the session off the thread, for transactions driven from several threads which
+   *                    use {@link #getSession()}
+   */
+  void beforeStart(boolean bindSession) {
+    begin(bindSession);
+  }
+
+  /**
+   * @param bindSession Bind the session to the thread for {@code sessionFactory.getCurrentSession()}; only honoured
+   *                    with the {@link SessionContext#MANAGED} session context
+   */
+  private void begin(boolean bindSession) {
+    UniMatrixConfig config = UniMatrix.config(sessionFactory);
+    bindSession = bindSession && config.getSessionContext() == SessionContext.MANAGED;
+    int transactionTimeout = timeout > 0 ? timeout : config.getTransactionTimeout();
+    deadline = transactionTimeout > 0 ? System.currentTimeMillis() + transactionTimeout : 0;
+    statementTimeout = queryTimeout > 0 ? queryTimeout : config.getQueryTimeout();
+    session = openSession(config);
     try {
       configureSession();
-      ManagedSessionContext.bind(session);
+      applyIsolation();
+      if (bindSession) {
+        outerSession = ManagedSessionContext.bind(session);
+        bound = true;
+      }
       session.beginTransaction();
+      checkDeadline();
     } catch (Exception t) {
+      rollbackTransaction();
+      restoreIsolation();
       session.close();
       session = null;
-      ManagedSessionContext.unbind(sessionFactory);
+      unbindSession();
       throw t;
     }
   }
 
+  private Session openSession(UniMatrixConfig config) {
+    monitor = TransactionMonitor.create(config, statementBudget);
+    if (monitor == null && statementTimeout <= 0 && deadline == 0 && isolation == Connection.TRANSACTION_NONE) {
+      return sessionFactory.openSession();
+    }
+    var sessionBuilder = sessionFactory.withOptions()
+        .statementInspector(this::inspect);
+    if (monitor != null) {
+      sessionBuilder.interceptor(monitor);
+    }
+    if (isolation != Connection.TRANSACTION_NONE) {
+      // Keep the connection past the transaction, the previous isolation level is restored on it before release
+      sessionBuilder.connectionHandlingMode(PhysicalConnectionHandlingMode.DELAYED_ACQUISITION_AND_HOLD);
+    }
+    return sessionBuilder.openSession();
+  }
+
+  /**
+   * Sets the isolation level before the transaction begins, drivers may ignore or reject a change within one
+   */
+  private void applyIsolation() {
+    if (isolation == Connection.TRANSACTION_NONE) {
+      return;
+    }
+    session.doWork(connection -> {
+      previousIsolation = connection.getTransactionIsolation();
+      if (previousIsolation != isolation) {
+        connection.setTransactionIsolation(isolation);
+      }
+    });
+  }
+
+  private void restoreIsolation() {
+    int previous = previousIsolation;
+    previousIsolation = Connection.TRANSACTION_NONE;
+    if (previous == Connection.TRANSACTION_NONE || previous == isolation) {
+      return;
+    }
+    Transaction txn = session.getTransaction();
+    if (txn != null && txn.getStatus() == TransactionStatus.ACTIVE) {
+      // Left open after a constraint violation, the pool rolls it back and resets the connection on return
+      return;
+    }
+    try {
+      session.doWork(connection -> connection.setTransactionIsolation(previous));
+    } catch (RuntimeException e) {
+      log.warn("Could not restore the isolation level of the connection", e);
+    }
+  }
+
+  private String inspect(String sql) {
+    applyStatementTimeout();
+    return monitor != null ? monitor.inspect(sql) : sql;
+  }
+
+  /**
+   * Limits the next statement to the lower of the statement timeout and the time left before the transaction
+   * deadline. Hibernate applies the remaining transaction time as the JDBC query timeout (whole seconds, rounded down)
+   * when the statement is prepared, so the driver cancels the statement after the limit rounded up to a second plus
+   * up to one more second.
+   */
+  private void applyStatementTimeout() {
+    long limit = statementTimeout > 0 ? statementTimeout : Long.MAX_VALUE;
+    if (deadline > 0) {
+      limit = Math.min(limit, checkDeadline());
+    }
+    if (limit == Long.MAX_VALUE) {
+      return;
+    }
+    // One extra second as Hibernate rounds the remaining time down when it sets the query timeout
+    int seconds = (int) ((limit + 999) / 1000) + 1;
+    session.unwrap(SessionImplementor.class).getJdbcCoordinator().setTransactionTimeOut(seconds);
+  }
+
+  private long checkDeadline() {
+    if (deadline == 0) {
+      return Long.MAX_VALUE;
+    }
+    long remaining = deadline - System.currentTimeMillis();
+    if (remaining <= 0) {
+      throw UnimatrixRuntimeException.fromMessage()
+          .message("Transaction deadline exceeded by " + -remaining + "ms")
+          .build();
+    }
+    return remaining;
+  }
+
   private void configureSession() {
+    configure(session, readOnly);
+  }
+
+  private static void configure(Session session, boolean readOnly) {
     session.setDefaultReadOnly(readOnly);
     session.setCacheMode(CacheMode.NORMAL);
     session.setHibernateFlushMode(FlushMode.AUTO);
@@ -59,20 +235,51 @@ public class TransactionManager {
       rollbackTransaction();
       throw e;
     } finally {
-      session.close();
-      session = null;
-      ManagedSessionContext.unbind(sessionFactory);
+      closeSession();
+    }
+  }
+
+  private void closeSession() {
+    restoreIsolation();
+    session.close();
+    session = null;
+    unbindSession();
+    if (monitor != null) {
+      monitor.report();
+    }
+  }
+
+  /**
+   * Restores the session of an enclosing transaction when this transaction was started while another one was bound to
+   * the same thread, so the enclosing transaction can continue to use the current session.
+   */
+  private void unbindSession() {
+    if (!bound) {
+      return;
+    }
+    bound = false;
+    ManagedSessionContext.unbind(sessionFactory);
+    if (outerSession != null) {
+      if (outerSession.isOpen()) {
+        ManagedSessionContext.bind(outerSession);
+      }
+      outerSession = null;
     }
   }
 
   private void commitTransaction() {
     final Transaction txn = session.getTransaction();
     if (txn != null && txn.getStatus() == TransactionStatus.ACTIVE) {
+      checkDeadline();
       txn.commit();
     }
   }
 
   private void rollbackTransaction() {
+    rollback(session);
+  }
+
+  private static void rollback(Session session) {
     final Transaction txn = session.getTransaction();
     if (txn != null && txn.getStatus() == TransactionStatus.ACTIVE) {
       txn.rollback();
@@ -88,9 +295,7 @@ public class TransactionManager {
         rollbackTransaction();
       }
     } finally {
-      session.close();
-      session = null;
-      ManagedSessionContext.unbind(sessionFactory);
+      closeSession();
     }
   }
 
@@ -103,6 +308,17 @@ public class TransactionManager {
   }
 
   public <T, U, V> V execute(Function<U, T> function, U arg, Function<T, V> handler, boolean completeTransaction) throws UniMatrixException {
+    if (completeTransaction && releaseBeforeHandler()) {
+      return handle(executeInTransaction(function, arg, t -> t, true), handler);
+    }
+    return executeInTransaction(function, arg, handler, completeTransaction);
+  }
+
+  /**
+   * Runs the function and the handler in the transaction, whatever the handler mode
+   */
+  private <T, U, V> V executeInTransaction(Function<U, T> function, U arg, Function<T, V> handler,
+                                           boolean completeTransaction) throws UniMatrixException {
     if (completeTransaction) {
       beforeStart();
     }
@@ -120,4 +336,137 @@ public class TransactionManager {
       throw UniMatrixException.from().exception(e).build();
     }
   }
+
+  /**
+   * Low allocation execution path for hot single statement operations. The function receives the session directly,
+   * so the session is not bound to the thread and no result handler is involved.
+   */
+  public <T, U> T executeInSession(SessionFunction<U, T> function, U arg) throws UniMatrixException {
+    begin(false);
+    try {
+      T result = function.apply(session, arg);
+      afterEnd();
+      return result;
+    } catch (Exception e) {
+      onError(e);
+      throw UniMatrixException.from().exception(e).build();
+    }
+  }
+
+  private boolean releaseBeforeHandler() {
+    HandlerMode mode = handlerMode != null ? handlerMode : UniMatrix.config(sessionFactory).getHandlerMode();
+    return mode == HandlerMode.AFTER_RELEASE;
+  }
+
+  private static <T, V> V handle(T result, Function<T, V> handler) throws UniMatrixException {
+    try {
+      return handler.apply(result);
+    } catch (Exception e) {
+      throw UniMatrixException.from().exception(e).build();
+    }
+  }
+
+  /**
+   * Session passing execution with a result handler. The handler runs inside the transaction unless the
+   * {@link HandlerMode#AFTER_RELEASE} handler mode is used. The session is bound to
+   * the thread only with the {@link SessionContext#MANAGED} session context, for handlers which use
+   * {@code sessionFactory.getCurrentSession()}.
+   */
+  public <T, U, V> V executeInSession(SessionFunction<U, T> function, U arg, Function<T, V> handler) throws UniMatrixException {
+    if (releaseBeforeHandler()) {
+      return handle(executeInSession(function, arg), handler);
+    }
+    begin(true);
+    try {
+      V result = handler.apply(function.apply(session, arg));
+      afterEnd();
+      return result;
+    } catch (Exception e) {
+      onError(e);
+      throw UniMatrixException.from().exception(e).build();
+    }
+  }
+
+  /**
+   * Reusable executor of the single statement reads of a dao. It holds only the dao's settings, so one instance serves
+   * every call and thread. Reads which need neither a statement monitor nor a time limit run in a session opened and
+   * closed within the call, without a transaction manager; the others go through one which enforces them.
+   */
+  static final class Reader {
+
+    private final SessionFactory sessionFactory;
+    private final int queryTimeout;
+    private final int timeout;
+
+    Reader(SessionFactory sessionFactory, int queryTimeout, int timeout) {
+      this.sessionFactory = sessionFactory;
+      this.queryTimeout = queryTimeout;
+      this.timeout = timeout;
+    }
+
+    <T, U> T execute(SessionFunction<U, T> function, U arg) throws UniMatrixException {
+      UniMatrixConfig config = UniMatrix.config(sessionFactory);
+      if (!isPlain(config)) {
+        return new TransactionManager(sessionFactory, true, 0, queryTimeout, timeout).executeInSession(function, arg);
+      }
+      Session session = sessionFactory.openSession();
+      try {
+        configure(session, true);
+        session.beginTransaction();
+        T result = function.apply(session, arg);
+        session.getTransaction().commit();
+        return result;
+      } catch (Exception e) {
+        rollback(session);
+        throw UniMatrixException.from().exception(e).build();
+      } finally {
+        session.close();
+      }
+    }
+
+    private boolean isPlain(UniMatrixConfig config) {
+      return !config.isMonitorTransactions() && config.getStatementBudget() <= 0
+          && queryTimeout <= 0 && config.getQueryTimeout() <= 0
+          && timeout <= 0 && config.getTransactionTimeout() <= 0;
+    }
+  }
+
+  /**
+   * How transactions make their session available to the code running in them
+   */
+  public enum SessionContext {
+    /**
+     * Bind the session to the thread through Hibernate's {@link ManagedSessionContext}, so code running in the
+     * transaction can use {@code sessionFactory.getCurrentSession()}
+     */
+    MANAGED,
+    /**
+     * Never bind sessions to threads. The session is only passed explicitly ({@link #executeInSession},
+     * {@link #getSession()}, {@code TransactionContext.getSession()}), so transactions keep no thread local state and
+     * can be driven from any thread, including virtual threads and asynchronous continuations
+     */
+    EXPLICIT
+  }
+
+  /**
+   * When the result handlers of {@code execute} and {@code executeInSession} run
+   */
+  public enum HandlerMode {
+    /**
+     * Inside the transaction, while the session and its connection are held. Handlers can load lazy associations and
+     * their changes to managed entities are flushed on commit
+     */
+    IN_TRANSACTION,
+    /**
+     * After the transaction committed and the connection went back to the pool. Handlers get detached entities, so
+     * lazy associations which were not initialized inside the transaction can not be loaded and changes are not
+     * written
+     */
+    AFTER_RELEASE
+  }
+
+  @FunctionalInterface
+  public interface SessionFunction<U, T> {
+    T apply(Session session, U arg);
+  }
 }
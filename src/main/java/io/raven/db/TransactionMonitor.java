@@ -0,0 +1,141 @@
+package io.raven.db;
+
+import lombok.AccessLevel;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.hibernate.EmptyInterceptor;
+import org.hibernate.SessionFactory;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.event.service.spi.EventListenerRegistry;
+import org.hibernate.event.spi.EventType;
+import org.hibernate.event.spi.InitializeCollectionEventListener;
+import org.hibernate.resource.jdbc.spi.StatementInspector;
+import org.hibernate.type.Type;
+
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+/**
+ * Per transaction instrumentation. Counts the JDBC statements, entity loads and collection loads issued by a single
+ * session and flags statements that repeat with the same shape (a likely N+1 pattern). An optional statement budget
+ * either logs or fails the transaction once it is exceeded.
+ */
+@Slf4j
+@Getter
+public class TransactionMonitor extends EmptyInterceptor implements StatementInspector {
+
+  private static final Pattern STRING_LITERAL = Pattern.compile("'(?:[^']|'')*'");
+  private static final Pattern NUMERIC_LITERAL = Pattern.compile("\\b\\d+(\\.\\d+)?\\b");
+  private static final Pattern IN_LIST = Pattern.compile("\\(\\s*\\?(\\s*,\\s*\\?)*\\s*\\)");
+  private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+
+  private final int statementBudget;
+  private final BudgetAction budgetAction;
+  private final int repeatedStatementThreshold;
+
+  private int statementCount;
+  private int entityLoadCount;
+  private int collectionLoadCount;
+  private boolean budgetExceeded;
+
+  @Getter(AccessLevel.NONE)
+  private final Map<String, Integer> statementShapes = new HashMap<>();
+
+  public TransactionMonitor(int statementBudget, BudgetAction budgetAction, int repeatedStatementThreshold) {
+    this.statementBudget = statementBudget;
+    this.budgetAction = budgetAction;
+    this.repeatedStatementThreshold = repeatedStatementThreshold;
+  }
+
+  @Override
+  public String inspect(String sql) {
+    statementCount++;
+    statementShapes.merge(shapeOf(sql), 1, Integer::sum);
+    if (statementBudget > 0 && statementCount > statementBudget) {
+      onBudgetExceeded(sql);
+    }
+    return sql;
+  }
+
+  @Override
+  public boolean onLoad(Object entity, Serializable id, Object[] state, String[] propertyNames, Type[] types) {
+    entityLoadCount++;
+    return false;
+  }
+
+  void onCollectionLoad() {
+    collectionLoadCount++;
+  }
+
+  /**
+   * @return Statement shapes which were executed at least {@code repeatedStatementThreshold} times along with the
+   * number of executions
+   */
+  public Map<String, Integer> getRepeatedStatements() {
+    if (repeatedStatementThreshold <= 0) {
+      return Map.of();
+    }
+    return statementShapes.entrySet()
+        .stream()
+        .filter(e -> e.getValue() >= repeatedStatementThreshold)
+        .collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue));
+  }
+
+  void report() {
+    getRepeatedStatements().forEach((shape, count) ->
+        log.warn("Possible N+1 pattern: statement executed {} times in one transaction: {}", count, shape));
+    if (log.isDebugEnabled()) {
+      log.debug("Transaction completed with {} statements, {} entity loads, {} collection loads",
+          statementCount, entityLoadCount, collectionLoadCount);
+    }
+  }
+
+  private void onBudgetExceeded(String sql) {
+    boolean firstBreach = !budgetExceeded;
+    budgetExceeded = true;
+    if (budgetAction == BudgetAction.FAIL) {
+      throw UnimatrixRuntimeException.fromMessage()
+          .message("Statement budget of " + statementBudget + " exceeded by: " + sql)
+          .build();
+    }
+    if (firstBreach) {
+      log.warn("Statement budget of {} exceeded by: {}", statementBudget, sql);
+    }
+  }
+
+  static String shapeOf(String sql) {
+    String shape = STRING_LITERAL.matcher(sql).replaceAll("?");
+    shape = NUMERIC_LITERAL.matcher(shape).replaceAll("?");
+    shape = IN_LIST.matcher(shape).replaceAll("(?)");
+    return WHITESPACE.matcher(shape).replaceAll(" ").trim();
+  }
+
+  static TransactionMonitor create(UniMatrixConfig config, int statementBudget) {
+    int budget = statementBudget > 0 ? statementBudget : config.getStatementBudget();
+    if (!config.isMonitorTransactions() && budget <= 0) {
+      return null;
+    }
+    return new TransactionMonitor(budget, config.getStatementBudgetAction(), config.getRepeatedStatementThreshold());
+  }
+
+  /**
+   * Registers the collection load listener with the session factory. Entity loads and statements are observed
+   * through the session scoped interceptor and inspector.
+   */
+  static void register(SessionFactory sessionFactory) {
+    sessionFactory.unwrap(SessionFactoryImplementor.class)
+        .getServiceRegistry()
+        .getService(EventListenerRegistry.class)
+        .prependListeners(EventType.INIT_COLLECTION, (InitializeCollectionEventListener) event -> {
+          if (!event.getCollection().wasInitialized()
+              && event.getSession().getInterceptor() instanceof TransactionMonitor monitor) {
+            monitor.onCollectionLoad();
+          }
+        });
+  }
+
+  public enum BudgetAction {LOG, FAIL}
+}
@@ -0,0 +1,158 @@
+package io.raven.db;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Strings;
+import lombok.Getter;
+import org.hibernate.SessionFactory;
+
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
+
+/**
+ * An immutable, thread safe {@link EntityDao.TransactionContext} pipeline which is defined once and executed many
+ * times with different keys (or entities for save templates). The operations are captured when the template is
+ * compiled, so an execution only allocates the per call context.
+ * <p>
+ * Keys are validated before a transaction is opened: they must match the entity's id type and pass the optional
+ * precondition. Each template records its executions, failures, rejected keys and latency.
+ */
+public class TransactionTemplate<T> {
+
+  @Getter
+  private final String name;
+
+  private final SessionFactory sessionFactory;
+  private final EntityMetadata<T> metadata;
+  private final EntityDao.TransactionContext.Mode mode;
+  private final TransactionManager.SessionFunction<Object, Optional<T>> loader;
+  private final List<EntityDao.TransactionContext.Operation<T>> operations;
+  private final int queryTimeout;
+  private final int timeout;
+  private final Predicate<Object> precondition;
+
+  private final LongAdder executions = new LongAdder();
+  private final LongAdder failures = new LongAdder();
+  private final LongAdder rejected = new LongAdder();
+  private final LongAdder totalNanos = new LongAdder();
+  private final AtomicLong maxNanos = new AtomicLong();
+
+  TransactionTemplate(String name, EntityMetadata<T> metadata, EntityDao.TransactionContext<T> prototype) {
+    this(name, metadata, prototype.getSessionFactory(), prototype.getMode(), prototype.getLoader(),
+        List.copyOf(prototype.getOperations()), prototype.getQueryTimeout(), prototype.getTimeout(), null);
+  }
+
+  private TransactionTemplate(String name, EntityMetadata<T> metadata, SessionFactory sessionFactory,
+                              EntityDao.TransactionContext.Mode mode,
+                              TransactionManager.SessionFunction<Object, Optional<T>> loader,
+                              List<EntityDao.TransactionContext.Operation<T>> operations, int queryTimeout,
+                              int timeout, Predicate<Object> precondition) {
+    Preconditions.checkArgument(!Strings.isNullOrEmpty(name), "Template name is required");
+    Preconditions.checkArgument(queryTimeout >= 0 && timeout >= 0, "Timeouts of template %s can not be negative",
+        name);
+    this.name = name;
+    this.metadata = metadata;
+    this.sessionFactory = sessionFactory;
+    this.mode = mode;
+    this.loader = loader;
+    this.operations = operations;
+    this.queryTimeout = queryTimeout;
+    this.timeout = timeout;
+    this.precondition = precondition;
+  }
+
+  /**
+   * @return Template with the same pipeline which rejects keys (or entities) failing the precondition before a
+   * transaction is opened. Metrics are not shared with this template.
+   */
+  public TransactionTemplate<T> withPrecondition(Predicate<Object> precondition) {
+    return new TransactionTemplate<>(name, metadata, sessionFactory, mode, loader, operations, queryTimeout, timeout,
+        precondition);
+  }
+
+  /**
+   * Runs the pipeline for a key, or for an entity to save with templates from
+   * {@link EntityDao#saveTransactionTemplate}
+   *
+   * @throws IllegalArgumentException when the argument fails validation, no transaction was opened
+   */
+  public T execute(Object arg) {
+    Object checked = validate(arg);
+    long start = System.nanoTime();
+    try {
+      return new EntityDao.TransactionContext<>(sessionFactory, mode, loader, checked, operations, queryTimeout,
+          timeout).execute();
+    } catch (RuntimeException e) {
+      failures.increment();
+      throw e;
+    } finally {
+      long elapsed = System.nanoTime() - start;
+      executions.increment();
+      totalNanos.add(elapsed);
+      maxNanos.accumulateAndGet(elapsed, Math::max);
+    }
+  }
+
+  /**
+   * Runs {@link #execute(Object)} on the async executor
+   */
+  public CompletableFuture<T> executeAsync(Object arg) {
+    return UniMatrix.asyncExecutor(sessionFactory).submit(() -> execute(arg));
+  }
+
+  private Object validate(Object arg) {
+    try {
+      Object checked;
+      if (mode == EntityDao.TransactionContext.Mode.READ) {
+        checked = metadata.toKey(arg);
+      } else {
+        Preconditions.checkArgument(metadata.getEntityClass().isInstance(arg), "%s expects a %s to save", name,
+            metadata.getEntityClass().getSimpleName());
+        checked = arg;
+      }
+      Preconditions.checkArgument(precondition == null || precondition.test(checked),
+          "%s rejected by the precondition of %s", checked, name);
+      return checked;
+    } catch (IllegalArgumentException e) {
+      rejected.increment();
+      throw e;
+    }
+  }
+
+  public int getOperationCount() {
+    return operations.size();
+  }
+
+  public long getExecutions() {
+    return executions.sum();
+  }
+
+  public long getFailures() {
+    return failures.sum();
+  }
+
+  /**
+   * @return Number of keys or entities which failed validation
+   */
+  public long getRejected() {
+    return rejected.sum();
+  }
+
+  public double getAverageLatencyMillis() {
+    long count = executions.sum();
+    return count == 0 ? 0 : totalNanos.sum() / 1e6 / count;
+  }
+
+  public double getMaxLatencyMillis() {
+    return maxNanos.get() / 1e6;
+  }
+
+  @Override
+  public String toString() {
+    return String.format("%s: %d executions, %d failures, %d rejected, avg %.3fms, max %.3fms", name,
+        getExecutions(), getFailures(), getRejected(), getAverageLatencyMillis(), getMaxLatencyMillis());
+  }
+}
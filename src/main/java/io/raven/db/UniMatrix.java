@@ -1,19 +1,26 @@
 package io.raven.db;
 
+import com.google.common.base.Preconditions;
 import com.google.common.base.Strings;
 import lombok.Builder;
 import lombok.Getter;
 import lombok.Singular;
+import lombok.extern.slf4j.Slf4j;
 import org.hibernate.SessionFactory;
 import org.hibernate.boot.Metadata;
 import org.hibernate.boot.MetadataSources;
 import org.hibernate.boot.registry.StandardServiceRegistry;
 import org.hibernate.boot.registry.StandardServiceRegistryBuilder;
+import org.hibernate.engine.spi.ManagedEntity;
 
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
 
 import static org.hibernate.cfg.AvailableSettings.*;
 import static org.hibernate.cfg.Environment.CURRENT_SESSION_CONTEXT_CLASS;
@@ -25,18 +32,44 @@ import static org.hibernate.cfg.Environment.SHOW_SQL;
 import static org.hibernate.cfg.Environment.URL;
 import static org.hibernate.cfg.Environment.USER;
 
+@Slf4j
 public class UniMatrix {
 
+  static final String CONFIG = "unimatrix.config";
+
+  static final String ID_GENERATORS = "unimatrix.id.generators";
+
+  static final String ASYNC_EXECUTOR = "unimatrix.async.executor";
+
+  static final String LOOKUP_FILTERS = "unimatrix.lookup.filters";
+
+  private static final UniMatrixConfig DEFAULT_CONFIG = new UniMatrixConfig();
+
   @Getter
   private SessionFactory sessionFactory;
 
   private final UniMatrixConfig config;
   private final List<Class<?>> entities;
+  private final Map<Class<?>, IdGenerator> idGenerators;
+  private final Map<Class<?>, NegativeLookupFilter> lookupFilters;
+
+  private AsyncExecutor asyncExecutor;
+  private boolean closed;
 
+  /**
+   * @param lookupFilters Negative lookup filters of long id entities, registered with
+   *                      {@code builder().lookupFilter(entityClass, filter)}. A filter reports ids inserted outside
+   *                      this session factory (native SQL, other processes) as absent until it is rebuilt, so
+   *                      filters need {@link UniMatrixConfig#isExclusiveInserts()}.
+   */
   @Builder
-  public UniMatrix(UniMatrixConfig uniMatrixConfig, @Singular List<Class<?>> entities) {
+  public UniMatrix(UniMatrixConfig uniMatrixConfig, @Singular List<Class<?>> entities,
+                   @Singular Map<Class<?>, IdGenerator> idGenerators,
+                   @Singular Map<Class<?>, NegativeLookupFilter> lookupFilters) {
     this.config = uniMatrixConfig;
     this.entities = entities;
+    this.idGenerators = idGenerators == null ? Map.of() : idGenerators;
+    this.lookupFilters = lookupFilters == null ? Map.of() : lookupFilters;
     init();
   }
 
@@ -44,12 +77,42 @@ public class UniMatrix {
     sessionFactory = getOrCreateSessionFactory();
   }
 
+  /**
+   * Stops the async executor first and waits up to {@link UniMatrixConfig#getAsyncShutdownTimeout()} for its tasks, so
+   * that they do not run against a closed session factory, then closes the session factory.
+   */
   public void close() {
+    AsyncExecutor executor;
+    synchronized (this) {
+      closed = true;
+      executor = asyncExecutor;
+    }
+    if (executor != null) {
+      try {
+        executor.shutdown(config.getAsyncShutdownTimeout(), TimeUnit.MILLISECONDS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
     if(Objects.nonNull(sessionFactory) && !sessionFactory.isClosed()) {
       sessionFactory.close();
     }
   }
 
+  /**
+   * Runs the asynchronous dao methods, exposes queue depth and rejection counts. Created on first use, so a UniMatrix
+   * without async calls holds no workers or queue.
+   */
+  public synchronized AsyncExecutor getAsyncExecutor() {
+    if (asyncExecutor == null) {
+      if (closed) {
+        throw new RejectedExecutionException("UniMatrix is closed");
+      }
+      asyncExecutor = AsyncExecutor.create(config);
+    }
+    return asyncExecutor;
+  }
+
 
   public synchronized SessionFactory getOrCreateSessionFactory() {
     if(!Objects.isNull(sessionFactory)) {
@@ -57,6 +120,10 @@ public class UniMatrix {
     }
     final StandardServiceRegistryBuilder registryBuilder = new StandardServiceRegistryBuilder();
     Map<String, Object> settings = new HashMap<>();
+    settings.put(CONFIG, config);
+    settings.put(ID_GENERATORS, idGenerators);
+    settings.put(LOOKUP_FILTERS, lookupFilters);
+    settings.put(ASYNC_EXECUTOR, (Supplier<AsyncExecutor>) this::getAsyncExecutor);
     settings.put(HBM2DDL_AUTO, config.isCreateSchema() ? "create-drop" : "none");
     settings.put(SHOW_SQL, config.isShowSql());
     settings.put(CURRENT_SESSION_CONTEXT_CLASS, "managed");
@@ -75,19 +142,102 @@ public class UniMatrix {
     settings.put(ORDER_INSERTS, "true");
     settings.put(ORDER_UPDATES, "true");
     settings.put(BATCH_VERSIONED_DATA, "true");
-    settings.put("hibernate.hikari.connectionTimeout", "30000");
+    settings.put("hibernate.hikari.connectionTimeout", String.valueOf(config.getConnectionTimeout()));
     settings.put("hibernate.hikari.minimumIdle", String.valueOf(config.getMinPoolSize()));
     settings.put("hibernate.hikari.maximumPoolSize", String.valueOf(config.getMaxPoolSize()));
     settings.put("hibernate.hikari.idleTimeout", String.valueOf(config.getIdleTimeout()));
     settings.put("hibernate.hikari.connectionTestQuery", config.getTestQuery());
     settings.put("hibernate.hikari.autoCommit", "false");
     settings.put("hibernate.hikari.maxLifetime", String.valueOf(config.getMaxAge()));
+    if (config.getProperties() != null) {
+      settings.putAll(config.getProperties());
+    }
     registryBuilder.applySettings(settings);
+    registryBuilder.addInitiator(SlowQueryLogger.INITIATOR);
+    checkEnhancement();
+    if (!lookupFilters.isEmpty()) {
+      Preconditions.checkArgument(config.isExclusiveInserts(),
+          "Lookup filters of %s need exclusiveInserts, inserts from elsewhere would be reported as absent",
+          lookupFilters.keySet().stream().map(Class::getSimpleName).collect(Collectors.toList()));
+    }
+    lookupFilters.keySet().forEach(NegativeLookupFilter::check);
     StandardServiceRegistry registry = registryBuilder.build();
     MetadataSources sources = new MetadataSources(registry);
     entities.forEach(sources::addAnnotatedClass);
+    if (idGenerators.values().stream().anyMatch(PooledIdGenerator.class::isInstance)) {
+      sources.addAnnotatedClass(IdBlock.class);
+    }
     Metadata metadata = sources.getMetadataBuilder().build();
     sessionFactory = metadata.getSessionFactoryBuilder().applyStatisticsSupport(false).build();
+    TransactionMonitor.register(sessionFactory);
+    idGenerators.values().forEach(generator -> generator.initialize(sessionFactory));
+    NegativeLookupFilter.register(sessionFactory, lookupFilters);
+    lookupFilters.forEach((entityClass, filter) -> filter.initialize(sessionFactory, entityClass));
     return sessionFactory;
   }
+
+  /**
+   * Reports entities which were not bytecode enhanced at build time (see the {@code enhance} profile in the pom). Only
+   * the class hierarchy is checked, entity metadata is built lazily by the daos.
+   */
+  private void checkEnhancement() {
+    List<String> plain = entities.stream()
+        .filter(entity -> !ManagedEntity.class.isAssignableFrom(entity))
+        .map(Class::getName)
+        .collect(Collectors.toList());
+    if (plain.isEmpty()) {
+      log.debug("All {} entities are bytecode enhanced", entities.size());
+      return;
+    }
+    if (config.isRequireEnhancement()) {
+      throw new UnimatrixRuntimeException("Entities are not bytecode enhanced: " + plain);
+    }
+    log.debug("Entities without bytecode enhancement, flushes compare snapshots: {}", plain);
+  }
+
+  @SuppressWarnings("unchecked")
+  static IdGenerator idGenerator(SessionFactory sessionFactory, Class<?> entityClass) {
+    Object generators = sessionFactory.getProperties().get(ID_GENERATORS);
+    if (!(generators instanceof Map)) {
+      return null;
+    }
+    for (Class<?> type = entityClass; type != null; type = type.getSuperclass()) {
+      IdGenerator generator = ((Map<Class<?>, IdGenerator>) generators).get(type);
+      if (generator != null) {
+        return generator;
+      }
+    }
+    return null;
+  }
+
+  @SuppressWarnings("unchecked")
+  static NegativeLookupFilter lookupFilter(SessionFactory sessionFactory, Class<?> entityClass) {
+    Object filters = sessionFactory.getProperties().get(LOOKUP_FILTERS);
+    if (!(filters instanceof Map) || ((Map<?, ?>) filters).isEmpty()) {
+      return null;
+    }
+    for (Class<?> type = entityClass; type != null; type = type.getSuperclass()) {
+      NegativeLookupFilter filter = ((Map<Class<?>, NegativeLookupFilter>) filters).get(type);
+      if (filter != null) {
+        return filter;
+      }
+    }
+    return null;
+  }
+
+  static AsyncExecutor asyncExecutor(SessionFactory sessionFactory) {
+    if (sessionFactory.isClosed()) {
+      throw new RejectedExecutionException("Session factory is closed");
+    }
+    Object executor = sessionFactory.getProperties().get(ASYNC_EXECUTOR);
+    if (executor instanceof Supplier<?> supplier && supplier.get() instanceof AsyncExecutor asyncExecutor) {
+      return asyncExecutor;
+    }
+    throw new UnimatrixRuntimeException("Async execution needs a session factory built by UniMatrix");
+  }
+
+  static UniMatrixConfig config(SessionFactory sessionFactory) {
+    Object config = sessionFactory.getProperties().get(CONFIG);
+    return config instanceof UniMatrixConfig uniMatrixConfig ? uniMatrixConfig : DEFAULT_CONFIG;
+  }
 }
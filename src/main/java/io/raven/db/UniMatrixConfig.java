@@ -6,6 +6,9 @@ import lombok.Data;
 import lombok.Generated;
 import lombok.NoArgsConstructor;
 
+import java.util.HashMap;
+import java.util.Map;
+
 @Data
 @Builder
 @Generated
@@ -45,6 +48,23 @@ public class UniMatrixConfig {
   @Builder.Default
   private int maxAge = 45000;
 
+  @Builder.Default
+  private int connectionTimeout = 30000;
+
+  /**
+   * Default statement timeout in milliseconds, 0 for none. JDBC enforces it in whole seconds, a statement is cancelled
+   * after the limit rounded up to a second plus up to one more second (150ms cancels after 1 to 2 seconds).
+   */
+  @Builder.Default
+  private int queryTimeout = 0;
+
+  /**
+   * Default transaction deadline in milliseconds, 0 for none. It covers statements and commit, the wait for a pooled
+   * connection is bounded by {@link #connectionTimeout}.
+   */
+  @Builder.Default
+  private int transactionTimeout = 0;
+
   @Builder.Default
   private int jdbcBatchSize = 100;
 
@@ -54,4 +74,69 @@ public class UniMatrixConfig {
   @Builder.Default
   private int slowQueryThreshold = 15;
 
+  @Builder.Default
+  private boolean monitorTransactions = false;
+
+  @Builder.Default
+  private int statementBudget = 0;
+
+  @Builder.Default
+  private TransactionMonitor.BudgetAction statementBudgetAction = TransactionMonitor.BudgetAction.LOG;
+
+  @Builder.Default
+  private int repeatedStatementThreshold = 5;
+
+  @Builder.Default
+  private TransactionManager.SessionContext sessionContext = TransactionManager.SessionContext.MANAGED;
+
+  /**
+   * When result handlers run, {@link TransactionManager.HandlerMode#AFTER_RELEASE} returns the connection first
+   */
+  @Builder.Default
+  private TransactionManager.HandlerMode handlerMode = TransactionManager.HandlerMode.IN_TRANSACTION;
+
+  /**
+   * Workers running the async dao methods, 0 uses one worker per pooled connection ({@code maxPoolSize})
+   */
+  @Builder.Default
+  private int asyncThreads = 0;
+
+  /**
+   * Async tasks waiting for a worker beyond which new async tasks are rejected
+   */
+  @Builder.Default
+  private int asyncQueueSize = 1000;
+
+  /**
+   * Milliseconds {@link UniMatrix#close()} waits for queued and running async tasks before interrupting them and
+   * closing the session factory
+   */
+  @Builder.Default
+  private int asyncShutdownTimeout = 30000;
+
+  /**
+   * Attempts and backoff of optimistic updates on version conflicts
+   */
+  @Builder.Default
+  private RetryPolicy optimisticRetry = RetryPolicy.builder().build();
+
+  /**
+   * Fail the bootstrap if an entity was not bytecode enhanced at build time
+   */
+  @Builder.Default
+  private boolean requireEnhancement = false;
+
+  /**
+   * Declares that every insert of the entities with a {@link NegativeLookupFilter} goes through this UniMatrix. Rows
+   * inserted by other processes or native SQL are reported as absent until the filter is rebuilt, so registering a
+   * filter fails unless this is set.
+   */
+  @Builder.Default
+  private boolean exclusiveInserts = false;
+
+  /**
+   * Additional hibernate settings. These are applied last and override the settings derived from this config.
+   */
+  @Builder.Default
+  private Map<String, String> properties = new HashMap<>();
 }
@@ -0,0 +1,30 @@
+package io.raven.db;
+
+import org.hibernate.engine.spi.SharedSessionContractImplementor;
+import org.hibernate.id.IdentifierGenerator;
+
+import java.io.Serializable;
+
+/**
+ * Hibernate identifier generator delegating to the {@link IdGenerator} registered with {@link UniMatrix} for the
+ * entity class. Ids are assigned before the insert, so inserts are batched.
+ */
+public class UniMatrixIdentifierGenerator implements IdentifierGenerator {
+
+  public static final String STRATEGY = "io.raven.db.UniMatrixIdentifierGenerator";
+
+  private volatile IdGenerator generator;
+
+  @Override
+  public Serializable generate(SharedSessionContractImplementor session, Object object) {
+    IdGenerator idGenerator = generator;
+    if (idGenerator == null) {
+      idGenerator = UniMatrix.idGenerator(session.getFactory(), object.getClass());
+      if (idGenerator == null) {
+        throw new UnimatrixRuntimeException("No id generator registered for " + object.getClass().getName());
+      }
+      generator = idGenerator;
+    }
+    return idGenerator.nextId();
+  }
+}
@@ -13,4 +13,8 @@ public class UnimatrixRuntimeException extends RuntimeException {
   public UnimatrixRuntimeException(String message) {
     super(message);
   }
+
+  public UnimatrixRuntimeException(String message, Throwable cause) {
+    super(message, cause);
+  }
 }
@@ -1,8 +1,11 @@
 package io.raven.db;
 
 import com.google.common.collect.Lists;
+import io.raven.db.entity.TestCompositeEntity;
 import io.raven.db.entity.TestEntity;
 import io.raven.db.entity.TestRelatedEntity;
+import io.raven.db.entity.TestUuidEntity;
+import io.raven.db.entity.TestVersionedEntity;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
 
@@ -24,7 +27,8 @@ public class AbstractDaoTest {
         .build();
     uniMatrix = UniMatrix.builder()
         .uniMatrixConfig(uniMatrixConfig)
-        .entities(Lists.newArrayList(TestEntity.class, TestRelatedEntity.class))
+        .entities(Lists.newArrayList(TestEntity.class, TestRelatedEntity.class, TestUuidEntity.class,
+            TestCompositeEntity.class, TestVersionedEntity.class))
         .build();
   }
 
@@ -0,0 +1,171 @@
+package io.raven.db;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.google.common.collect.Lists;
+import io.raven.db.entity.TestEntity;
+import io.raven.db.entity.TestRelatedEntity;
+import java.math.BigDecimal;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import org.hibernate.criterion.DetachedCriteria;
+import org.hibernate.criterion.Restrictions;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+public class AsyncExecutorTest {
+
+  private UniMatrix uniMatrix;
+
+  private EntityDao<TestEntity> dao(int asyncThreads, int asyncQueueSize) {
+    UniMatrixConfig uniMatrixConfig = UniMatrixConfig.builder()
+        .createSchema(true)
+        .driverClass("org.h2.Driver")
+        .dialect("org.hibernate.dialect.H2Dialect")
+        .database("db_test")
+        .url("jdbc:h2:mem:db_async_test")
+        .asyncThreads(asyncThreads)
+        .asyncQueueSize(asyncQueueSize)
+        .build();
+    uniMatrix = UniMatrix.builder()
+        .uniMatrixConfig(uniMatrixConfig)
+        .entities(Lists.newArrayList(TestEntity.class, TestRelatedEntity.class))
+        .build();
+    return new EntityDao<>(uniMatrix.getSessionFactory(), TestEntity.class);
+  }
+
+  @AfterEach
+  void teardown() {
+    if (uniMatrix != null) {
+      uniMatrix.close();
+    }
+  }
+
+  private static TestEntity entity(int i) {
+    return TestEntity.builder()
+        .externalId("ext-" + i)
+        .text("text")
+        .amount(BigDecimal.ZERO)
+        .build();
+  }
+
+  @Test
+  void testAsyncFanOut() throws Exception {
+    EntityDao<TestEntity> dao = dao(0, 100);
+    assertEquals(4, uniMatrix.getAsyncExecutor().getThreads());
+    List<TestEntity> saved = dao.saveAsync(IntStream.range(0, 10)
+        .mapToObj(AsyncExecutorTest::entity)
+        .collect(Collectors.toList())).get();
+    List<CompletableFuture<Optional<TestEntity>>> reads = saved.stream()
+        .map(e -> dao.getAsync(e.getId()))
+        .collect(Collectors.toList());
+    CompletableFuture<Long> count = dao.countAsync(DetachedCriteria.forClass(TestEntity.class));
+    CompletableFuture<List<TestEntity>> select = dao.selectAsync(DetachedCriteria.forClass(TestEntity.class)
+        .add(Restrictions.eq("externalId", "ext-3")));
+    CompletableFuture.allOf(reads.toArray(new CompletableFuture[0])).get();
+    for (int i = 0; i < saved.size(); i++) {
+      assertEquals(saved.get(i).getId(), reads.get(i).get().get().getId());
+    }
+    assertEquals(10, count.get());
+    assertEquals(1, select.get().size());
+
+    long id = saved.get(0).getId();
+    assertTrue(dao.updateAsync(id, entity -> {
+      entity.ifPresent(e -> e.setText("updated"));
+      return entity;
+    }).get());
+    TestEntity result = dao.getTransactionContext(id)
+        .mutate(parent -> parent.setAmount(BigDecimal.TEN))
+        .executeAsync()
+        .get();
+    assertEquals("updated", result.getText());
+    assertEquals(0, BigDecimal.TEN.compareTo(dao.getAsync(id).get().get().getAmount()));
+
+    ExecutionException failure = assertThrows(ExecutionException.class,
+        () -> dao.getTransactionContext(-1L).executeAsync().get());
+    assertTrue(failure.getCause() instanceof UnimatrixRuntimeException);
+    assertEquals(1, uniMatrix.getAsyncExecutor().getFailed());
+    assertEquals(0, uniMatrix.getAsyncExecutor().getRejected());
+  }
+
+  @Test
+  void testRejectWhenQueueFull() throws Exception {
+    EntityDao<TestEntity> dao = dao(1, 1);
+    long id = dao.save(entity(0)).get().getId();
+    CountDownLatch started = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    CompletableFuture<TestEntity> blocking = dao.getTransactionContext(id)
+        .mutate(parent -> {
+          started.countDown();
+          try {
+            release.await(10, TimeUnit.SECONDS);
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+        })
+        .executeAsync();
+    assertTrue(started.await(10, TimeUnit.SECONDS));
+    CompletableFuture<Optional<TestEntity>> queued = dao.getAsync(id);
+    assertEquals(1, uniMatrix.getAsyncExecutor().getQueueDepth());
+    CompletableFuture<Optional<TestEntity>> rejected = dao.getAsync(id);
+    assertTrue(rejected.isCompletedExceptionally());
+    ExecutionException failure = assertThrows(ExecutionException.class, rejected::get);
+    assertTrue(failure.getCause() instanceof RejectedExecutionException);
+    assertEquals(1, uniMatrix.getAsyncExecutor().getRejected());
+
+    release.countDown();
+    blocking.get();
+    assertTrue(queued.get().isPresent());
+    assertEquals(2, uniMatrix.getAsyncExecutor().getSubmitted());
+    assertEquals(2, uniMatrix.getAsyncExecutor().getCompleted());
+  }
+
+  @Test
+  void testCloseDrainsBeforeSessionFactory() throws Exception {
+    EntityDao<TestEntity> dao = dao(1, 10);
+    long id = dao.save(entity(0)).get().getId();
+    CountDownLatch started = new CountDownLatch(1);
+    CompletableFuture<TestEntity> running = dao.getTransactionContext(id)
+        .mutate(parent -> {
+          started.countDown();
+          try {
+            Thread.sleep(200);
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+          parent.setText("drained");
+        })
+        .executeAsync();
+    CompletableFuture<Optional<TestEntity>> queued = dao.getAsync(id);
+    assertTrue(started.await(10, TimeUnit.SECONDS));
+    uniMatrix.close();
+    assertEquals("drained", running.get().getText());
+    assertEquals("drained", queued.get().get().getText());
+    ExecutionException failure = assertThrows(ExecutionException.class, () -> dao.getAsync(id).get());
+    assertTrue(failure.getCause() instanceof RejectedExecutionException);
+  }
+
+  @Test
+  void testErrorCompletesFuture() throws Exception {
+    AsyncExecutor executor = new AsyncExecutor(1, 1);
+    try {
+      CompletableFuture<Object> future = executor.submit(() -> {
+        throw new AssertionError("call failed");
+      });
+      ExecutionException failure = assertThrows(ExecutionException.class, () -> future.get(10, TimeUnit.SECONDS));
+      assertTrue(failure.getCause() instanceof AssertionError);
+      assertEquals(1, executor.getFailed());
+    } finally {
+      executor.shutdown();
+    }
+  }
+}
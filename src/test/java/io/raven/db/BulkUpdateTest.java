@@ -0,0 +1,111 @@
+package io.raven.db;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import io.raven.db.entity.TestEntity;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.hibernate.criterion.DetachedCriteria;
+import org.hibernate.criterion.Restrictions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+public class BulkUpdateTest extends AbstractDaoTest {
+
+  private EntityDao<TestEntity> dao;
+
+  @BeforeEach
+  public void before() {
+    dao = new EntityDao<>(uniMatrix.getSessionFactory(), TestEntity.class);
+  }
+
+  private List<TestEntity> save(int count, String externalId) throws UniMatrixException {
+    List<TestEntity> entities = new ArrayList<>();
+    for (int i = 0; i < count; i++) {
+      entities.add(TestEntity.builder().externalId(externalId).text("Some Text").build());
+    }
+    return dao.save(entities);
+  }
+
+  private long updated(String externalId) throws UniMatrixException {
+    return dao.count(DetachedCriteria.forClass(TestEntity.class)
+        .add(Restrictions.eq("externalId", externalId))
+        .add(Restrictions.eq("text", "bulk")));
+  }
+
+  @Test
+  void testBulkUpdateByCriteria() throws Exception {
+    save(25, "bulk");
+    save(3, "other");
+    BulkUpdate.Report report = dao.bulkUpdate(DetachedCriteria.forClass(TestEntity.class)
+            .add(Restrictions.eq("externalId", "bulk")), e -> e.setText("bulk"))
+        .chunkSize(10)
+        .parallelism(2)
+        .execute();
+    assertTrue(report.isSuccess());
+    assertEquals(25, report.getTotal());
+    assertEquals(3, report.getChunks());
+    assertEquals(25, report.getUpdated());
+    assertEquals(0, report.getRetries());
+    assertEquals(25, updated("bulk"));
+    assertEquals(0, updated("other"));
+  }
+
+  @Test
+  void testBulkUpdateFailures() throws Exception {
+    long[] ids = save(10, "bulk").stream().mapToLong(TestEntity::getId).sorted().toArray();
+    long bad = ids[3];
+    long[] keys = new long[ids.length + 1];
+    System.arraycopy(ids, 0, keys, 0, ids.length);
+    keys[ids.length] = Long.MAX_VALUE;
+    RetryPolicy retryPolicy = RetryPolicy.builder().maxAttempts(2).initialBackoff(0).build();
+    EntityDao.TransactionContext.Mutator<TestEntity> failing = e -> {
+      if (e.getId() == bad) {
+        throw new IllegalStateException("bad row");
+      }
+      e.setText("bulk");
+    };
+
+    // A bad row only fails its own chunk
+    BulkUpdate.Report report = dao.bulkUpdate(keys, failing)
+        .chunkSize(4)
+        .retryPolicy(retryPolicy)
+        .execute();
+    assertFalse(report.isSuccess());
+    assertEquals(3, report.getChunks());
+    assertArrayEquals(new long[]{ids[0], ids[1], ids[2], ids[3]}, report.getFailedKeys());
+    assertEquals(6, report.getUpdated());
+    assertEquals(1, report.getMissing());
+    assertEquals(1, report.getRetries());
+    assertEquals(1, report.getErrors().size());
+    assertEquals(6, updated("bulk"));
+
+    // Isolating the failed chunk reports only the bad row
+    report = dao.bulkUpdate(keys, failing)
+        .chunkSize(4)
+        .retryPolicy(retryPolicy)
+        .isolateFailures(true)
+        .execute();
+    assertArrayEquals(new long[]{bad}, report.getFailedKeys());
+    assertEquals(9, report.getUpdated());
+    assertEquals(9, updated("bulk"));
+
+    // A transient failure is retried
+    AtomicBoolean failed = new AtomicBoolean();
+    report = dao.bulkUpdate(new long[]{bad}, e -> {
+          if (failed.compareAndSet(false, true)) {
+            throw new IllegalStateException("transient");
+          }
+          e.setText("bulk");
+        })
+        .retryPolicy(retryPolicy)
+        .execute();
+    assertTrue(report.isSuccess());
+    assertEquals(1, report.getRetries());
+    assertEquals(10, updated("bulk"));
+  }
+}
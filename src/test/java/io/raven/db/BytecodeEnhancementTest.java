@@ -0,0 +1,92 @@
+package io.raven.db;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import io.raven.db.entity.TestEntity;
+import io.raven.db.entity.TestRelatedEntity;
+import java.io.Serializable;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import org.hibernate.EmptyInterceptor;
+import org.hibernate.Session;
+import org.hibernate.Transaction;
+import org.hibernate.criterion.DetachedCriteria;
+import org.hibernate.criterion.Restrictions;
+import org.hibernate.type.Type;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Runs against plain test entities with {@code mvn clean test} and against enhanced ones with
+ * {@code mvn -Penhance test}. The flush cost of both is compared by {@code FlushBenchmark} in the benchmarks module.
+ */
+public class BytecodeEnhancementTest extends AbstractDaoTest {
+
+  private static final boolean ENHANCED = EntityMetadata.of(TestEntity.class).isEnhanced();
+  private static final int ENTITIES = 500;
+  private static final int MODIFIED = 5;
+
+  @Test
+  void testEnhancementDetected() {
+    if (Boolean.getBoolean("unimatrix.enhanced")) {
+      assertTrue(ENHANCED);
+    }
+    assertEquals(ENHANCED, EntityMetadata.of(TestEntity.class).isDirtyTracking());
+    assertEquals(ENHANCED, EntityMetadata.of(TestRelatedEntity.class).isEnhanced());
+  }
+
+  @Test
+  void testRequireEnhancement() {
+    UniMatrixConfig config = UniMatrixConfig.builder()
+        .createSchema(true)
+        .driverClass("org.h2.Driver")
+        .dialect("org.hibernate.dialect.H2Dialect")
+        .url("jdbc:h2:mem:db_enhancement_test")
+        .requireEnhancement(true)
+        .build();
+    if (ENHANCED) {
+      UniMatrix.builder().uniMatrixConfig(config).entity(TestEntity.class).entity(TestRelatedEntity.class).build()
+          .close();
+    } else {
+      assertThrows(UnimatrixRuntimeException.class, () -> UniMatrix.builder()
+          .uniMatrixConfig(config)
+          .entity(TestEntity.class)
+          .build());
+    }
+  }
+
+  @Test
+  void testDirtyCheckedEntities() throws Exception {
+    EntityDao<TestEntity> dao = new EntityDao<>(uniMatrix.getSessionFactory(), TestEntity.class);
+    dao.save(IntStream.range(0, ENTITIES)
+        .mapToObj(i -> TestEntity.builder().externalId("Flush").text("Some Text " + i).build())
+        .collect(Collectors.toList()));
+    DirtyCheckCounter counter = new DirtyCheckCounter();
+    try (Session session = uniMatrix.getSessionFactory().withOptions().interceptor(counter).openSession()) {
+      Transaction transaction = session.beginTransaction();
+      List<TestEntity> entities = session.createQuery("from TestEntity", TestEntity.class).getResultList();
+      for (int i = 0; i < MODIFIED; i++) {
+        entities.get(i).setText("Flushed " + i);
+      }
+      transaction.commit();
+    }
+    // Enhanced entities track their own changes, the flush only dirty checks the modified ones
+    assertEquals(ENHANCED ? MODIFIED : ENTITIES, counter.checks);
+    assertEquals(MODIFIED, dao.count(DetachedCriteria.forClass(TestEntity.class)
+        .add(Restrictions.like("text", "Flushed%"))));
+  }
+
+  private static final class DirtyCheckCounter extends EmptyInterceptor {
+
+    private int checks;
+
+    @Override
+    public int[] findDirty(Object entity, Serializable id, Object[] currentState, Object[] previousState,
+                           String[] propertyNames, Type[] types) {
+      checks++;
+      return null;
+    }
+  }
+}
@@ -1,23 +1,46 @@
 package io.raven.db;
 
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Lists;
+import io.raven.db.entity.TestCompositeEntity;
+import io.raven.db.entity.TestCompositeKey;
 import io.raven.db.entity.TestEntity;
+import io.raven.db.entity.TestRelatedEntity;
+import io.raven.db.entity.TestUuidEntity;
+import io.raven.db.entity.TestVersionedEntity;
 import java.math.BigDecimal;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Optional;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.hibernate.criterion.DetachedCriteria;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.criterion.Order;
 import org.hibernate.criterion.Restrictions;
+import org.junit.jupiter.api.Assumptions;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 
@@ -82,6 +105,40 @@ public class EntityDaoTest extends AbstractDaoTest {
     assertEquals(10, fetched.size());
   }
 
+  @Test
+  void testKeyOnlyQueries() throws Exception {
+    List<TestEntity> tobeSaved = new ArrayList<>();
+    for (int i = 0; i < 5; i++) {
+      tobeSaved.add(TestEntity.builder()
+          .externalId(i % 2 == 0 ? "even" : "odd")
+          .text("Some Text " + i)
+          .build());
+    }
+    long[] saved = testEntityEntityDao.save(tobeSaved).stream().mapToLong(TestEntity::getId).toArray();
+
+    // More keys than one id query takes, with duplicates and misses
+    long[] keys = new long[2500];
+    for (int i = 0; i < keys.length; i++) {
+      keys[i] = -i;
+    }
+    keys[0] = saved[0];
+    keys[1200] = saved[3];
+    keys[2499] = saved[0];
+    BitSet present = testEntityEntityDao.existsAll(keys);
+    assertEquals(3, present.cardinality());
+    assertTrue(present.get(0));
+    assertTrue(present.get(1200));
+    assertTrue(present.get(2499));
+    assertTrue(testEntityEntityDao.existsAll(new long[0]).isEmpty());
+
+    long[] even = testEntityEntityDao.selectIds(DetachedCriteria.forClass(TestEntity.class)
+        .add(Restrictions.eq("externalId", "even"))
+        .addOrder(Order.desc("id")));
+    assertArrayEquals(new long[]{saved[4], saved[2], saved[0]}, even);
+    assertEquals(0, testEntityEntityDao.selectIds(DetachedCriteria.forClass(TestEntity.class)
+        .add(Restrictions.eq("externalId", "none"))).length);
+  }
+
   @Test
   void testCount() throws Exception {
     TestEntity testEntity = TestEntity.builder()
@@ -526,4 +583,603 @@ public class EntityDaoTest extends AbstractDaoTest {
     assertEquals(tobeSaved.size(), saved.size());
   }
 
+  @Test
+  void testClaimBatchTransactionContext() throws Exception {
+    List<TestEntity> tobeSaved = new ArrayList<>();
+    for (int i = 0; i < 5; i++) {
+      tobeSaved.add(TestEntity.builder()
+          .externalId("Claim")
+          .text("pending")
+          .build());
+    }
+    testEntityEntityDao.save(tobeSaved);
+    List<TestEntity> claimed = testEntityEntityDao.claimBatchTransactionContext(DetachedCriteria.forClass(TestEntity.class)
+            .add(Restrictions.eq("text", "pending")), 3)
+        .mutate(entities -> entities.forEach(e -> e.setText("claimed")))
+        .execute();
+    assertEquals(3, claimed.size());
+    assertEquals(2, testEntityEntityDao.count(DetachedCriteria.forClass(TestEntity.class)
+        .add(Restrictions.eq("text", "pending"))));
+  }
+
+  @Test
+  void testConcurrentClaimsAreDisjoint() throws Exception {
+    Assumptions.assumeTrue(uniMatrix.getSessionFactory().unwrap(SessionFactoryImplementor.class)
+        .getJdbcServices().getDialect().supportsSkipLocked(), "Dialect does not support SKIP LOCKED");
+    List<TestEntity> tobeSaved = new ArrayList<>();
+    for (int i = 0; i < 6; i++) {
+      tobeSaved.add(TestEntity.builder()
+          .externalId("ConcurrentClaim")
+          .text("queued")
+          .build());
+    }
+    testEntityEntityDao.save(tobeSaved);
+    DetachedCriteria queued = DetachedCriteria.forClass(TestEntity.class)
+        .add(Restrictions.eq("text", "queued"));
+    CountDownLatch claimed = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      Future<List<TestEntity>> holder = executor.submit(() -> testEntityEntityDao.claimBatchTransactionContext(queued, 3)
+          .mutate(entities -> {
+            claimed.countDown();
+            try {
+              release.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+              Thread.currentThread().interrupt();
+            }
+          })
+          .execute());
+      assertTrue(claimed.await(10, TimeUnit.SECONDS));
+      List<TestEntity> second = testEntityEntityDao.claimBatchTransactionContext(queued, 3).execute();
+      release.countDown();
+      List<TestEntity> first = holder.get(10, TimeUnit.SECONDS);
+      Set<Long> ids = new HashSet<>();
+      first.forEach(e -> ids.add(e.getId()));
+      second.forEach(e -> ids.add(e.getId()));
+      assertEquals(3, first.size());
+      assertEquals(3, second.size());
+      assertEquals(6, ids.size());
+    } finally {
+      release.countDown();
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  void testBatchTransactionContextOrderedLocking() throws Exception {
+    List<TestEntity> tobeSaved = new ArrayList<>();
+    for (int i = 0; i < 3; i++) {
+      tobeSaved.add(TestEntity.builder()
+          .externalId("OrderedLocking")
+          .text("Some Text " + i)
+          .build());
+    }
+    List<TestEntity> saved = testEntityEntityDao.save(tobeSaved);
+    long first = saved.get(0).getId();
+    long second = saved.get(1).getId();
+    long third = saved.get(2).getId();
+    var context = testEntityEntityDao.getBatchTransactionContext(Lists.newArrayList(third, first, null, third, -1L,
+            second))
+        .lockChunkSize(2)
+        .mutate(entities -> entities.stream().filter(Objects::nonNull).forEach(e -> e.setText("Locked")));
+    // Locked in key order, returned in the requested order with one entry per key
+    List<TestEntity> locked = context.execute();
+    assertEquals(6, locked.size());
+    assertEquals(third, locked.get(0).getId());
+    assertEquals(first, locked.get(1).getId());
+    assertNull(locked.get(2));
+    assertSame(locked.get(0), locked.get(3));
+    assertNull(locked.get(4));
+    assertEquals(second, locked.get(5).getId());
+    assertTrue(context.getLockAcquisitionTime() >= 0);
+    assertEquals(3, testEntityEntityDao.count(DetachedCriteria.forClass(TestEntity.class)
+        .add(Restrictions.eq("text", "Locked"))));
+  }
+
+  @Test
+  void testGetMultiPrimitive() throws Exception {
+    List<TestEntity> saved = testEntityEntityDao.save(Lists.newArrayList(
+        TestEntity.builder().externalId("PrimitiveGet").text("Some Text1").build(),
+        TestEntity.builder().externalId("PrimitiveGet").text("Some Text2").build()));
+    long[] ids = {saved.get(0).getId(), saved.get(1).getId()};
+    List<TestEntity> entities = testEntityEntityDao.get(ids);
+    assertEquals(2, entities.size());
+    assertEquals(ids[0], entities.get(0).getId());
+    assertEquals(ids[1], entities.get(1).getId());
+  }
+
+  @Test
+  void testBatchTransactionContextPrimitiveKeys() throws Exception {
+    List<TestEntity> tobeSaved = new ArrayList<>();
+    for (int i = 0; i < 3; i++) {
+      tobeSaved.add(TestEntity.builder()
+          .externalId("PrimitiveKeys")
+          .text("Some Text " + i)
+          .build());
+    }
+    List<TestEntity> saved = testEntityEntityDao.save(tobeSaved);
+    long first = saved.get(0).getId();
+    long second = saved.get(1).getId();
+    long third = saved.get(2).getId();
+    var context = testEntityEntityDao.getBatchTransactionContext(new long[]{third, first, third, second})
+        .lockChunkSize(2)
+        .mutate(entities -> entities.forEach(e -> e.setText("PrimitiveLocked")));
+    List<TestEntity> locked = context.execute();
+    assertEquals(4, locked.size());
+    assertEquals(third, locked.get(0).getId());
+    assertEquals(first, locked.get(1).getId());
+    assertSame(locked.get(0), locked.get(2));
+    assertEquals(second, locked.get(3).getId());
+    assertEquals(List.of(third, first, third, second), context.getKeys());
+    assertEquals(3, testEntityEntityDao.count(DetachedCriteria.forClass(TestEntity.class)
+        .add(Restrictions.eq("text", "PrimitiveLocked"))));
+  }
+
+  @Test
+  void testUuidKey() throws Exception {
+    EntityDao<TestUuidEntity> uuidDao = new EntityDao<>(uniMatrix.getSessionFactory(), TestUuidEntity.class);
+    UUID id = UUID.randomUUID();
+    uuidDao.save(TestUuidEntity.builder().id(id).text("Some Text").build());
+    assertTrue(uuidDao.existsByKey(id));
+    assertFalse(uuidDao.existsByKey(UUID.randomUUID()));
+    assertEquals("Some Text", uuidDao.getByKey(id).get().getText());
+    assertTrue(uuidDao.updateByKey(id, entity -> {
+      entity.ifPresent(e -> e.setText("Updated"));
+      return entity;
+    }));
+    uuidDao.getTransactionContextByKey(id)
+        .mutate(parent -> parent.setText(parent.getText() + " In Lock"))
+        .execute();
+    assertEquals("Updated In Lock", uuidDao.getByKey(id).get().getText());
+    assertEquals(1, uuidDao.getByKeys(List.of(id)).size());
+    assertThrows(IllegalArgumentException.class, () -> uuidDao.getByKey("not-a-uuid"));
+  }
+
+  @Test
+  void testCompositeKey() throws Exception {
+    EntityDao<TestCompositeEntity> compositeDao = new EntityDao<>(uniMatrix.getSessionFactory(),
+        TestCompositeEntity.class);
+    compositeDao.save(TestCompositeEntity.builder().tenant("t1").number(1).text("Some Text").build());
+    TestCompositeKey key = new TestCompositeKey("t1", 1);
+    assertTrue(compositeDao.existsByKey(key));
+    assertFalse(compositeDao.existsByKey(new TestCompositeKey("t2", 1)));
+    assertTrue(compositeDao.updateInLockByKey(key, entity -> {
+      entity.ifPresent(e -> e.setText("Updated"));
+      return entity;
+    }));
+    Optional<TestCompositeEntity> result = compositeDao.getByKey(key);
+    assertEquals("Updated", result.get().getText());
+    assertEquals(key, compositeDao.getMetadata().getId(result.get()));
+  }
+
+  /**
+   * Changes the amount in a separate transaction while the updater runs, so a full row update would overwrite it
+   */
+  private void concurrentAmountChange(long id) {
+    try {
+      testEntityEntityDao.updateNative("update test_entity set amount = :amount where id = :id",
+          ImmutableMap.of("amount", new BigDecimal("99.00"), "id", id));
+    } catch (UniMatrixException e) {
+      throw new UnimatrixRuntimeException(e);
+    }
+  }
+
+  @Test
+  void testUpdateDiffWritesChangedColumns() throws Exception {
+    Optional<TestEntity> saved = testEntityEntityDao.save(TestEntity.builder()
+        .externalId("UpdateDiff")
+        .text("Some Text")
+        .amount(BigDecimal.ONE)
+        .build());
+    long id = saved.get().getId();
+    EntityDao<TestEntity> diffDao = testEntityEntityDao.withUpdateMode(EntityDao.UpdateMode.DIFF);
+    assertEquals(EntityDao.UpdateMode.DIFF, diffDao.getUpdateMode());
+    assertTrue(diffDao.update(id, entity -> {
+      concurrentAmountChange(id);
+      entity.ifPresent(e -> e.setText("Updated"));
+      return entity;
+    }));
+    TestEntity result = testEntityEntityDao.get(id).get();
+    assertEquals("Updated", result.getText());
+    assertEquals(new BigDecimal("99.00"), result.getAmount());
+    assertTrue(diffDao.updateInLock(id, entity -> {
+      entity.ifPresent(e -> e.setAmount(BigDecimal.TEN));
+      return entity;
+    }));
+    result = testEntityEntityDao.get(id).get();
+    assertEquals("Updated", result.getText());
+    assertEquals(new BigDecimal("10.00"), result.getAmount());
+    // A different instance is merged into the loaded one, still only its changed columns are written
+    assertTrue(diffDao.update(id, entity -> {
+      concurrentAmountChange(id);
+      return entity.map(e -> TestEntity.builder()
+          .id(e.getId())
+          .externalId(e.getExternalId())
+          .text("Replaced")
+          .amount(e.getAmount())
+          .partitionId(e.getPartitionId())
+          .build());
+    }));
+    result = testEntityEntityDao.get(id).get();
+    assertEquals("Replaced", result.getText());
+    assertEquals(new BigDecimal("99.00"), result.getAmount());
+    assertThrows(IllegalArgumentException.class, () -> new EntityDao<>(uniMatrix.getSessionFactory(),
+        TestRelatedEntity.class).withUpdateMode(EntityDao.UpdateMode.DIFF));
+  }
+
+  @Test
+  void testUpdateDiffSkipsUnchanged() throws Exception {
+    Optional<TestEntity> saved = testEntityEntityDao.save(TestEntity.builder()
+        .externalId("UpdateDiff")
+        .text("Some Text")
+        .amount(BigDecimal.ONE)
+        .build());
+    long id = saved.get().getId();
+    assertTrue(testEntityEntityDao.withUpdateMode(EntityDao.UpdateMode.DIFF).update(id, entity -> {
+      concurrentAmountChange(id);
+      return entity;
+    }));
+    assertEquals(new BigDecimal("99.00"), testEntityEntityDao.get(id).get().getAmount());
+    assertTrue(testEntityEntityDao.update(id, entity -> {
+      concurrentAmountChange(id);
+      entity.ifPresent(e -> e.setAmount(BigDecimal.ONE));
+      return entity;
+    }));
+    assertEquals(new BigDecimal("1.00"), testEntityEntityDao.get(id).get().getAmount());
+  }
+
+  @Test
+  void testUpdateOptimisticConcurrent() throws Exception {
+    EntityDao<TestVersionedEntity> versionedDao = new EntityDao<>(uniMatrix.getSessionFactory(),
+        TestVersionedEntity.class);
+    long id = versionedDao.save(TestVersionedEntity.builder().build()).get().getId();
+    RetryPolicy retryPolicy = RetryPolicy.builder().maxAttempts(100).initialBackoff(1).maxBackoff(20).build();
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      List<Future<Boolean>> futures = new ArrayList<>();
+      for (int i = 0; i < 20; i++) {
+        futures.add(executor.submit(() -> versionedDao.updateOptimistic(id, entity -> {
+          entity.ifPresent(e -> e.setCounter(e.getCounter() + 1));
+          return entity;
+        }, retryPolicy)));
+      }
+      for (Future<Boolean> future : futures) {
+        assertTrue(future.get());
+      }
+    } finally {
+      executor.shutdown();
+    }
+    TestVersionedEntity result = versionedDao.get(id).get();
+    assertEquals(20, result.getCounter());
+    assertEquals(20, result.getVersion());
+  }
+
+  @Test
+  void testUpdateOptimisticAttemptLimit() throws Exception {
+    EntityDao<TestVersionedEntity> versionedDao = new EntityDao<>(uniMatrix.getSessionFactory(),
+        TestVersionedEntity.class);
+    long id = versionedDao.save(TestVersionedEntity.builder().build()).get().getId();
+    AtomicInteger attempts = new AtomicInteger();
+    for (EntityDao.UpdateMode mode : EntityDao.UpdateMode.values()) {
+      attempts.set(0);
+      assertThrows(UniMatrixException.class, () -> versionedDao.withUpdateMode(mode).updateOptimistic(id, entity -> {
+        attempts.incrementAndGet();
+        // A competing writer bumps the version between the read and the write of every attempt
+        try {
+          versionedDao.update(id, competing -> {
+            competing.ifPresent(e -> e.setCounter(e.getCounter() + 1));
+            return competing;
+          });
+        } catch (UniMatrixException e) {
+          throw new UnimatrixRuntimeException(e);
+        }
+        entity.ifPresent(e -> e.setCounter(-1));
+        return entity;
+      }, RetryPolicy.builder().maxAttempts(3).initialBackoff(1).build()));
+      assertEquals(3, attempts.get());
+    }
+    assertEquals(6, versionedDao.get(id).get().getCounter());
+    assertThrows(IllegalStateException.class, () -> testEntityEntityDao.updateOptimistic(1L, entity -> entity));
+  }
+
+  @Test
+  void testTransactionContextSavepoint() throws Exception {
+    TestEntity testEntity = TestEntity.builder()
+        .externalId("TransactionContextSavepoint")
+        .text("Some Text1")
+        .build();
+    Optional<TestEntity> saved = testEntityEntityDao.save(testEntity);
+    assertTrue(saved.isPresent());
+    testEntityEntityDao.getTransactionContext(saved.get().getId())
+        .mutate(parent -> parent.setText("Mutated"))
+        .savepoint(parent -> {
+          parent.setText("Discarded");
+          uniMatrix.getSessionFactory().getCurrentSession().save(TestEntity.builder()
+              .externalId("TransactionContextSavepointChild")
+              .text("Some Text1")
+              .build());
+          throw new IllegalStateException("Step failed");
+        })
+        .execute();
+    Optional<TestEntity> fetched = testEntityEntityDao.get(saved.get().getId());
+    assertEquals("Mutated", fetched.get().getText());
+    assertEquals(0, testEntityEntityDao.count(DetachedCriteria.forClass(TestEntity.class)
+        .add(Restrictions.eq("externalId", "TransactionContextSavepointChild"))));
+  }
+
+  @Test
+  void testTransactionContextSavepointDaoWrites() throws Exception {
+    Optional<TestEntity> saved = testEntityEntityDao.save(TestEntity.builder()
+        .externalId("TransactionContextSavepointDao")
+        .text("Some Text1")
+        .build());
+    testEntityEntityDao.getTransactionContext(saved.get().getId())
+        .savepoint(parent -> {
+          uniMatrix.getSessionFactory().getCurrentSession().save(TestEntity.builder()
+              .externalId("TransactionContextSavepointSessionChild")
+              .text("Some Text1")
+              .build());
+          try {
+            testEntityEntityDao.save(TestEntity.builder()
+                .externalId("TransactionContextSavepointDaoChild")
+                .text("Some Text1")
+                .build());
+          } catch (UniMatrixException e) {
+            throw new UnimatrixRuntimeException(e);
+          }
+          throw new IllegalStateException("Step failed");
+        })
+        .execute();
+    // The session write is rolled back to the savepoint, the dao write committed in its own transaction
+    assertEquals(0, testEntityEntityDao.count(DetachedCriteria.forClass(TestEntity.class)
+        .add(Restrictions.eq("externalId", "TransactionContextSavepointSessionChild"))));
+    assertEquals(1, testEntityEntityDao.count(DetachedCriteria.forClass(TestEntity.class)
+        .add(Restrictions.eq("externalId", "TransactionContextSavepointDaoChild"))));
+  }
+
+  @Test
+  void testTransactionContextSavepointAlternative() throws Exception {
+    TestEntity testEntity = TestEntity.builder()
+        .externalId("TransactionContextSavepointAlternative")
+        .text("Some Text1")
+        .build();
+    Optional<TestEntity> saved = testEntityEntityDao.save(testEntity);
+    assertTrue(saved.isPresent());
+    testEntityEntityDao.getTransactionContext(saved.get().getId())
+        .savepoint(parent -> {
+          parent.setAmount(BigDecimal.TEN);
+          throw new IllegalStateException("Step failed");
+        }, parent -> {
+          parent.setText("Alternative");
+          return null;
+        })
+        .save(testEntityEntityDao, parent -> TestEntity.builder()
+            .externalId("TransactionContextSavepointAlternativeChild")
+            .text("Some Text1")
+            .build())
+        .execute();
+    Optional<TestEntity> fetched = testEntityEntityDao.get(saved.get().getId());
+    assertEquals("Alternative", fetched.get().getText());
+    assertNull(fetched.get().getAmount());
+    assertEquals(1, testEntityEntityDao.count(DetachedCriteria.forClass(TestEntity.class)
+        .add(Restrictions.eq("externalId", "TransactionContextSavepointAlternativeChild"))));
+  }
+
+
+  @Test
+  void testStreamBackpressure() throws Exception {
+    List<TestEntity> entities = new ArrayList<>();
+    for (int i = 0; i < 250; i++) {
+      entities.add(TestEntity.builder().externalId("stream").text("Some Text " + i).build());
+    }
+    testEntityEntityDao.save(entities);
+    RecordingSubscriber<TestEntity> subscriber = new RecordingSubscriber<>();
+    testEntityEntityDao.stream(DetachedCriteria.forClass(TestEntity.class)
+        .add(Restrictions.eq("externalId", "stream")), 20).subscribe(subscriber);
+    assertTrue(subscriber.items.isEmpty());
+    subscriber.subscription.request(10);
+    assertEquals(10, subscriber.items.size());
+    assertFalse(subscriber.completed);
+    subscriber.subscription.request(240);
+    assertEquals(250, subscriber.items.size());
+    assertFalse(subscriber.completed);
+    subscriber.subscription.request(1);
+    assertTrue(subscriber.completed);
+    assertNull(subscriber.error);
+    assertEquals(250, subscriber.items.stream().map(TestEntity::getId).distinct().count());
+  }
+
+  @Test
+  void testStreamReleasesConnectionOnCancelAndError() throws Exception {
+    for (int i = 0; i < 3; i++) {
+      testEntityEntityDao.save(TestEntity.builder().externalId("stream").text("Some Text").build());
+    }
+    // Hold every pooled connection with a partially consumed stream
+    List<RecordingSubscriber<TestEntity>> subscribers = new ArrayList<>();
+    for (int i = 0; i < 4; i++) {
+      RecordingSubscriber<TestEntity> subscriber = new RecordingSubscriber<>();
+      testEntityEntityDao.stream("from TestEntity where externalId = :externalId",
+          ImmutableMap.of("externalId", "stream"), 1).subscribe(subscriber);
+      subscriber.subscription.request(1);
+      assertEquals(1, subscriber.items.size());
+      subscribers.add(subscriber);
+    }
+    subscribers.forEach(subscriber -> subscriber.subscription.cancel());
+    subscribers.forEach(subscriber -> assertFalse(subscriber.completed));
+    assertEquals(3, testEntityEntityDao.count(DetachedCriteria.forClass(TestEntity.class)));
+
+    for (int i = 0; i < 5; i++) {
+      RecordingSubscriber<TestEntity> failing = new RecordingSubscriber<>();
+      testEntityEntityDao.stream("from TestEntity where unknownProperty = 1", null, 1).subscribe(failing);
+      failing.subscription.request(1);
+      assertNotNull(failing.error);
+      failing.subscription.request(1);
+      assertTrue(failing.items.isEmpty());
+    }
+    assertEquals(3, testEntityEntityDao.count(DetachedCriteria.forClass(TestEntity.class)));
+  }
+
+  @Test
+  void testTransactionTemplate() throws Exception {
+    List<Long> ids = new ArrayList<>();
+    for (int i = 0; i < 10; i++) {
+      ids.add(testEntityEntityDao.save(TestEntity.builder()
+          .externalId("template")
+          .text("Some Text")
+          .amount(BigDecimal.ZERO)
+          .build()).get().getId());
+    }
+    TransactionTemplate<TestEntity> template = testEntityEntityDao.transactionTemplate("increment", context -> context
+        .mutate(parent -> parent.setAmount(parent.getAmount().add(BigDecimal.ONE)))
+        .savepoint(parent -> {
+          parent.setText("rolled back");
+          throw new IllegalStateException("step failed");
+        }));
+    assertEquals(2, template.getOperationCount());
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      // Threads share the template, each key is updated by one thread as rows are locked without waiting
+      List<Future<TestEntity>> futures = new ArrayList<>();
+      for (long id : ids) {
+        futures.add(executor.submit(() -> {
+          TestEntity result = null;
+          for (int round = 0; round < 5; round++) {
+            result = template.execute(id);
+          }
+          return result;
+        }));
+      }
+      for (Future<TestEntity> future : futures) {
+        future.get();
+      }
+    } finally {
+      executor.shutdown();
+    }
+    for (long id : ids) {
+      TestEntity entity = testEntityEntityDao.get(id).get();
+      assertEquals(0, BigDecimal.valueOf(5).compareTo(entity.getAmount()));
+      assertEquals("Some Text", entity.getText());
+    }
+    assertEquals(50, template.getExecutions());
+    assertEquals(0, template.getFailures());
+    assertTrue(template.getMaxLatencyMillis() >= template.getAverageLatencyMillis());
+
+    assertThrows(UnimatrixRuntimeException.class, () -> template.execute(-1L));
+    assertEquals(1, template.getFailures());
+    assertThrows(IllegalArgumentException.class, () -> template.execute("not a long"));
+    TransactionTemplate<TestEntity> positive = template.withPrecondition(key -> (Long) key > 0);
+    assertThrows(IllegalArgumentException.class, () -> positive.execute(-1L));
+    assertEquals(1, template.getRejected());
+    assertEquals(1, positive.getRejected());
+    assertEquals(0, positive.getExecutions());
+
+    TransactionTemplate<TestEntity> saveTemplate = testEntityEntityDao.saveTransactionTemplate("create",
+        context -> context.mutate(parent -> parent.setText("created")));
+    TestEntity created = saveTemplate.execute(TestEntity.builder().externalId("template").text("new").build());
+    assertEquals("created", testEntityEntityDao.get(created.getId()).get().getText());
+    assertThrows(IllegalArgumentException.class, () -> saveTemplate.execute(1L));
+  }
+
+  @Test
+  void testTransactionContextDeferredWrites() throws Exception {
+    TestEntity parent = testEntityEntityDao.save(TestEntity.builder()
+        .externalId("DeferredParent")
+        .text("Some Text")
+        .build()).get();
+    List<Long> childIds = new ArrayList<>();
+    for (int i = 0; i < 5; i++) {
+      childIds.add(testEntityEntityDao.save(TestEntity.builder()
+          .externalId("DeferredChild")
+          .text("Some Text " + i)
+          .build()).get().getId());
+    }
+    EntityDao.TransactionContext<TestEntity> context = testEntityEntityDao.getTransactionContext(parent.getId())
+        .deferWrites(true)
+        .mutate(e -> e.setText("Updated parent"))
+        .saveAll(testEntityEntityDao, e -> List.of(
+            TestEntity.builder().externalId("DeferredNew").text("New 1").build(),
+            TestEntity.builder().externalId("DeferredNew").text("New 2").build()));
+    for (long childId : childIds) {
+      context.update(testEntityEntityDao, childId, child -> {
+        child.ifPresent(c -> c.setText("Updated child"));
+        return child;
+      });
+    }
+    context.update(testEntityEntityDao, "update TestEntity set amount = :amount where externalId = :externalId",
+        ImmutableMap.of("amount", BigDecimal.TEN, "externalId", "DeferredNew"));
+    context.execute();
+    assertEquals("Updated parent", testEntityEntityDao.get(parent.getId()).get().getText());
+    for (long childId : childIds) {
+      assertEquals("Updated child", testEntityEntityDao.get(childId).get().getText());
+    }
+    List<TestEntity> created = testEntityEntityDao.select(DetachedCriteria.forClass(TestEntity.class)
+        .add(Restrictions.eq("externalId", "DeferredNew")), e -> e);
+    assertEquals(2, created.size());
+    created.forEach(e -> assertEquals(0, BigDecimal.TEN.compareTo(e.getAmount())));
+
+    // Deferred child writes roll back with the pipeline, immediate ones are already committed
+    for (boolean deferWrites : new boolean[]{true, false}) {
+      assertThrows(IllegalArgumentException.class, () -> testEntityEntityDao.getTransactionContext(parent.getId())
+          .deferWrites(deferWrites)
+          .save(testEntityEntityDao, e -> TestEntity.builder().externalId("DeferredRollback").text("Child").build())
+          .filter(e -> false)
+          .execute());
+    }
+    assertEquals(1, testEntityEntityDao.count(DetachedCriteria.forClass(TestEntity.class)
+        .add(Restrictions.eq("externalId", "DeferredRollback"))));
+  }
+
+  @Test
+  void testBatchTransactionContextDeferredWrites() throws Exception {
+    List<TestEntity> parents = testEntityEntityDao.save(List.of(
+        TestEntity.builder().externalId("DeferredBatchParent").text("Some Text").build(),
+        TestEntity.builder().externalId("DeferredBatchParent").text("Some Text").build()));
+    assertThrows(IllegalStateException.class, () -> testEntityEntityDao
+        .getBatchTransactionContext(parents.stream().mapToLong(TestEntity::getId).toArray())
+        .deferWrites(true)
+        .save(testEntityEntityDao, entities -> List.of(
+            TestEntity.builder().externalId("DeferredBatchChild").text("Child").build()))
+        .mutate(entities -> {
+          throw new IllegalStateException("failed after the child write");
+        })
+        .execute());
+    assertEquals(0, testEntityEntityDao.count(DetachedCriteria.forClass(TestEntity.class)
+        .add(Restrictions.eq("externalId", "DeferredBatchChild"))));
+    testEntityEntityDao.getBatchTransactionContext(parents.stream().mapToLong(TestEntity::getId).toArray())
+        .deferWrites(true)
+        .save(testEntityEntityDao, entities -> List.of(
+            TestEntity.builder().externalId("DeferredBatchChild").text("Child").build()))
+        .execute();
+    assertEquals(1, testEntityEntityDao.count(DetachedCriteria.forClass(TestEntity.class)
+        .add(Restrictions.eq("externalId", "DeferredBatchChild"))));
+  }
+
+  private static final class RecordingSubscriber<T> implements Flow.Subscriber<T> {
+
+    private final List<T> items = new ArrayList<>();
+    private Flow.Subscription subscription;
+    private boolean completed;
+    private Throwable error;
+
+    @Override
+    public void onSubscribe(Flow.Subscription subscription) {
+      this.subscription = subscription;
+    }
+
+    @Override
+    public void onNext(T item) {
+      items.add(item);
+    }
+
+    @Override
+    public void onError(Throwable throwable) {
+      this.error = throwable;
+    }
+
+    @Override
+    public void onComplete() {
+      this.completed = true;
+    }
+  }
 }
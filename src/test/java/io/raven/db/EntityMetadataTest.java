@@ -0,0 +1,103 @@
+package io.raven.db;
+
+import io.raven.db.entity.TestCompositeEntity;
+import io.raven.db.entity.TestCompositeKey;
+import io.raven.db.entity.TestEntity;
+import lombok.Data;
+import org.junit.jupiter.api.Test;
+
+import javax.persistence.EmbeddedId;
+import javax.persistence.Entity;
+import java.math.BigDecimal;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class EntityMetadataTest {
+
+  @Test
+  void testRegistryIsShared() {
+    assertSame(EntityMetadata.of(TestEntity.class), EntityMetadata.of(TestEntity.class));
+    assertEquals("id", EntityMetadata.of(TestEntity.class).getIdField().getName());
+    assertEquals("id", EntityMetadata.of(TestEntity.class).getIdName());
+  }
+
+  @Test
+  void testIdAccessors() {
+    EntityMetadata<TestEntity> metadata = EntityMetadata.of(TestEntity.class);
+    TestEntity entity = TestEntity.builder().text("text").externalId("ext").build();
+    metadata.setId(entity, 42L);
+    assertEquals(42L, entity.getId());
+    assertEquals(42L, metadata.getId(entity));
+    assertEquals(42L, metadata.getLongId(entity));
+    assertTrue(metadata.isLongId());
+    assertEquals(long.class, metadata.getIdType());
+  }
+
+  @Test
+  void testPropertyAccessors() {
+    EntityMetadata<TestEntity> metadata = EntityMetadata.of(TestEntity.class);
+    TestEntity entity = TestEntity.builder().text("text").externalId("ext").build();
+    assertTrue(metadata.getProperties().contains("text"));
+    assertTrue(metadata.getProperties().contains("externalId"));
+    assertEquals("ext", metadata.get(entity, "externalId"));
+    metadata.set(entity, "amount", BigDecimal.TEN);
+    assertEquals(BigDecimal.TEN, entity.getAmount());
+    assertThrows(IllegalArgumentException.class, () -> metadata.get(entity, "unknown"));
+  }
+
+  @Test
+  void testUnversionedEntity() {
+    EntityMetadata<TestEntity> metadata = EntityMetadata.of(TestEntity.class);
+    TestEntity entity = TestEntity.builder().text("text").externalId("ext").build();
+    assertFalse(metadata.isVersioned());
+    assertNull(metadata.getVersionField());
+    assertNull(metadata.getVersion(entity));
+  }
+
+  @Test
+  void testIdClassComposite() {
+    EntityMetadata<TestCompositeEntity> metadata = EntityMetadata.of(TestCompositeEntity.class);
+    assertTrue(metadata.isCompositeId());
+    assertFalse(metadata.isLongId());
+    assertNull(metadata.getIdField());
+    assertNull(metadata.getIdName());
+    assertEquals(2, metadata.getIdFields().size());
+    assertEquals(TestCompositeKey.class, metadata.getIdType());
+    TestCompositeEntity entity = new TestCompositeEntity();
+    metadata.setId(entity, new TestCompositeKey("t1", 7));
+    assertEquals("t1", entity.getTenant());
+    assertEquals(7, entity.getNumber());
+    assertEquals(new TestCompositeKey("t1", 7), metadata.getId(entity));
+    assertThrows(IllegalArgumentException.class, () -> metadata.toKey(7L));
+  }
+
+  @Test
+  void testEmbeddedIdComposite() {
+    EntityMetadata<EmbeddedIdEntity> metadata = EntityMetadata.of(EmbeddedIdEntity.class);
+    assertTrue(metadata.isCompositeId());
+    assertEquals(TestCompositeKey.class, metadata.getIdType());
+    EmbeddedIdEntity entity = new EmbeddedIdEntity();
+    metadata.setId(entity, new TestCompositeKey("t1", 7));
+    assertEquals(new TestCompositeKey("t1", 7), metadata.getId(entity));
+  }
+
+  @Test
+  void testEntityWithoutId() {
+    assertThrows(IllegalArgumentException.class, () -> EntityMetadata.of(String.class));
+  }
+
+  @Entity
+  @Data
+  static class EmbeddedIdEntity {
+
+    @EmbeddedId
+    private TestCompositeKey id;
+
+    private String text;
+  }
+}
@@ -0,0 +1,117 @@
+package io.raven.db;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import io.raven.db.entity.TestGeneratedIdEntity;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.LongStream;
+import org.hibernate.criterion.DetachedCriteria;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+public class IdGeneratorTest {
+
+  private UniMatrix uniMatrix;
+
+  private UniMatrix uniMatrix(IdGenerator generator) {
+    UniMatrixConfig uniMatrixConfig = UniMatrixConfig.builder()
+        .createSchema(true)
+        .driverClass("org.h2.Driver")
+        .dialect("org.hibernate.dialect.H2Dialect")
+        .database("db_test")
+        .url("jdbc:h2:mem:db_id_generator_test")
+        .build();
+    uniMatrix = UniMatrix.builder()
+        .uniMatrixConfig(uniMatrixConfig)
+        .entity(TestGeneratedIdEntity.class)
+        .idGenerator(TestGeneratedIdEntity.class, generator)
+        .build();
+    return uniMatrix;
+  }
+
+  @AfterEach
+  void teardown() {
+    if (uniMatrix != null) {
+      uniMatrix.close();
+    }
+  }
+
+  private static List<TestGeneratedIdEntity> entities(int count) {
+    return IntStream.range(0, count)
+        .mapToObj(i -> TestGeneratedIdEntity.builder().text("Some Text " + i).build())
+        .collect(Collectors.toList());
+  }
+
+  @Test
+  void testPooledIdGenerator() throws Exception {
+    PooledIdGenerator generator = PooledIdGenerator.builder()
+        .name("test_generated_id_entity")
+        .blockSize(10)
+        .build();
+    EntityDao<TestGeneratedIdEntity> dao = new EntityDao<>(uniMatrix(generator).getSessionFactory(),
+        TestGeneratedIdEntity.class);
+    List<Long> ids = dao.save(entities(25)).stream()
+        .map(TestGeneratedIdEntity::getId)
+        .collect(Collectors.toList());
+    assertEquals(LongStream.rangeClosed(1, 25).boxed().collect(Collectors.toList()), ids);
+    assertEquals(25, dao.count(DetachedCriteria.forClass(TestGeneratedIdEntity.class)));
+    EntityDao<IdBlock> blockDao = new EntityDao<>(uniMatrix.getSessionFactory(), IdBlock.class);
+    assertEquals(31, blockDao.getByKey("test_generated_id_entity").get().getNextValue());
+  }
+
+  @Test
+  void testSnowflakeIdGenerator() throws Exception {
+    SnowflakeIdGenerator generator = SnowflakeIdGenerator.builder().nodeId(7).build();
+    EntityDao<TestGeneratedIdEntity> dao = new EntityDao<>(uniMatrix(generator).getSessionFactory(),
+        TestGeneratedIdEntity.class);
+    List<TestGeneratedIdEntity> saved = dao.save(entities(5));
+    for (int i = 1; i < saved.size(); i++) {
+      assertTrue(saved.get(i).getId() > saved.get(i - 1).getId());
+    }
+    assertEquals(7, SnowflakeIdGenerator.nodeIdOf(saved.get(0).getId()));
+    assertTrue(dao.exists(saved.get(0).getId()));
+  }
+
+  @Test
+  void testSnowflakeIdsAreUniqueAcrossThreads() throws Exception {
+    SnowflakeIdGenerator generator = SnowflakeIdGenerator.builder().nodeId(1).build();
+    Set<Long> ids = ConcurrentHashMap.newKeySet();
+    ExecutorService executor = Executors.newFixedThreadPool(8);
+    for (int i = 0; i < 8; i++) {
+      executor.submit(() -> {
+        for (int j = 0; j < 10000; j++) {
+          ids.add(generator.nextId());
+        }
+      });
+    }
+    executor.shutdown();
+    assertTrue(executor.awaitTermination(30, TimeUnit.SECONDS));
+    assertEquals(80000, ids.size());
+  }
+
+  @Test
+  void testSnowflakeClockMovingBackwards() {
+    AtomicLong clock = new AtomicLong(SnowflakeIdGenerator.DEFAULT_EPOCH + 1000);
+    SnowflakeIdGenerator generator = SnowflakeIdGenerator.builder().clock(clock::get).build();
+    long first = generator.nextId();
+    clock.addAndGet(-500);
+    long second = generator.nextId();
+    assertTrue(second > first);
+    assertEquals(clock.get() + 500, SnowflakeIdGenerator.timestampOf(first, SnowflakeIdGenerator.DEFAULT_EPOCH));
+  }
+
+  @Test
+  void testInvalidNodeId() {
+    assertThrows(IllegalArgumentException.class, () -> SnowflakeIdGenerator.builder().nodeId(1024).build());
+  }
+}
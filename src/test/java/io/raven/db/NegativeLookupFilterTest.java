@@ -0,0 +1,123 @@
+package io.raven.db;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import io.raven.db.entity.TestEntity;
+import io.raven.db.entity.TestRelatedEntity;
+import io.raven.db.entity.TestUuidEntity;
+import java.util.concurrent.TimeUnit;
+import org.hibernate.SessionFactory;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+public class NegativeLookupFilterTest {
+
+  private UniMatrix uniMatrix;
+
+  private UniMatrix uniMatrix(Class<?> entityClass, NegativeLookupFilter filter) {
+    return uniMatrix(entityClass, filter, true);
+  }
+
+  private UniMatrix uniMatrix(Class<?> entityClass, NegativeLookupFilter filter, boolean exclusiveInserts) {
+    UniMatrixConfig uniMatrixConfig = UniMatrixConfig.builder()
+        .createSchema(true)
+        .driverClass("org.h2.Driver")
+        .dialect("org.hibernate.dialect.H2Dialect")
+        .database("db_test")
+        .url("jdbc:h2:mem:db_filter_test")
+        .exclusiveInserts(exclusiveInserts)
+        .build();
+    uniMatrix = UniMatrix.builder()
+        .uniMatrixConfig(uniMatrixConfig)
+        .entities(Lists.newArrayList(TestEntity.class, TestRelatedEntity.class, TestUuidEntity.class))
+        .lookupFilter(entityClass, filter)
+        .build();
+    return uniMatrix;
+  }
+
+  @AfterEach
+  void teardown() {
+    if (uniMatrix != null) {
+      uniMatrix.close();
+    }
+  }
+
+  @Test
+  void testNegativeLookups() throws Exception {
+    NegativeLookupFilter filter = new NegativeLookupFilter(10_000, 0.01);
+    EntityDao<TestEntity> dao = new EntityDao<>(uniMatrix(TestEntity.class, filter).getSessionFactory(),
+        TestEntity.class);
+    assertTrue(filter.awaitReady(10, TimeUnit.SECONDS));
+    assertEquals(1, filter.getRebuilds());
+
+    // Saved ids are added to the filter, by the dao and inside transaction contexts
+    long id = dao.save(TestEntity.builder().externalId("filter").text("Some Text").build()).get().getId();
+    long childId = dao.getTransactionContext(id)
+        .save(dao, parent -> TestEntity.builder().externalId("child").text("Some Text").build())
+        .execute()
+        .getId();
+    assertTrue(dao.get(id).isPresent());
+    assertTrue(dao.exists(id));
+    assertTrue(dao.get(childId).isPresent());
+    assertEquals(0, filter.getNegatives());
+
+    // Misses are answered by the filter, the rare false positive is recorded
+    for (long missing = 1_000_000; missing < 1_001_000; missing++) {
+      assertFalse(dao.exists(missing));
+    }
+    assertFalse(dao.get(-5L).isPresent());
+    assertEquals(1004, filter.getChecks());
+    assertEquals(1001, filter.getNegatives() + filter.getFalsePositives());
+    assertTrue(filter.getNegatives() > 900);
+    assertTrue(filter.getObservedFalsePositiveRate() < 0.1);
+
+    // Rows inserted behind the dao's back are only found after a rebuild
+    dao.updateNative("insert into test_entity (id, ext_id, text, partition_id) values (:id, 'native', 'text', 1)",
+        ImmutableMap.of("id", 5_000_000L));
+    assertFalse(dao.exists(5_000_000L));
+    filter.rebuild();
+    assertEquals(2, filter.getRebuilds());
+    assertTrue(dao.exists(5_000_000L));
+    assertTrue(dao.get(5_000_000L).isPresent());
+    assertEquals(3, filter.getApproximateIds());
+  }
+
+  @Test
+  void testInsertCommittedDuringRebuild() throws Exception {
+    NegativeLookupFilter filter = new NegativeLookupFilter(10_000, 0.01);
+    SessionFactory sessionFactory = uniMatrix(TestEntity.class, filter).getSessionFactory();
+    EntityDao<TestEntity> dao = new EntityDao<>(sessionFactory, TestEntity.class);
+    assertTrue(filter.awaitReady(10, TimeUnit.SECONDS));
+
+    // Flushed before the rebuild, committed after its scan read the table
+    TransactionManager transactionManager = TransactionManager.newTransaction()
+        .sessionFactory(sessionFactory)
+        .build();
+    transactionManager.beforeStart();
+    TestEntity entity = TestEntity.builder().externalId("racing").text("Some Text").build();
+    transactionManager.getSession().save(entity);
+    transactionManager.getSession().flush();
+    filter.rebuild();
+    transactionManager.afterEnd();
+
+    assertTrue(dao.exists(entity.getId()));
+    assertTrue(dao.get(entity.getId()).isPresent());
+  }
+
+  @Test
+  void testRequiresLongIds() {
+    assertThrows(IllegalArgumentException.class,
+        () -> uniMatrix(TestUuidEntity.class, new NegativeLookupFilter(100, 0.01)));
+  }
+
+  @Test
+  void testRequiresExclusiveInserts() {
+    assertThrows(IllegalArgumentException.class,
+        () -> uniMatrix(TestEntity.class, new NegativeLookupFilter(100, 0.01), false));
+  }
+}
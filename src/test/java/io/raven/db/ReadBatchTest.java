@@ -0,0 +1,113 @@
+package io.raven.db;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.google.common.collect.ImmutableMap;
+import io.raven.db.entity.TestEntity;
+import io.raven.db.entity.TestVersionedEntity;
+import java.sql.Connection;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import org.hibernate.criterion.DetachedCriteria;
+import org.hibernate.criterion.Restrictions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+public class ReadBatchTest extends AbstractDaoTest {
+
+  private EntityDao<TestEntity> dao;
+  private EntityDao<TestVersionedEntity> versionedDao;
+
+  @BeforeEach
+  public void before() {
+    dao = new EntityDao<>(uniMatrix.getSessionFactory(), TestEntity.class);
+    versionedDao = new EntityDao<>(uniMatrix.getSessionFactory(), TestVersionedEntity.class);
+  }
+
+  private TestEntity save(String externalId) throws UniMatrixException {
+    return dao.save(TestEntity.builder().externalId(externalId).text("Some Text").build()).get();
+  }
+
+  @Test
+  void testReadBatch() throws Exception {
+    TestEntity first = save("batch");
+    TestEntity second = save("batch");
+    save("other");
+    long versionedId = versionedDao.save(TestVersionedEntity.builder().counter(7).build()).get().getId();
+
+    ReadBatch batch = new ReadBatch(uniMatrix.getSessionFactory());
+    ReadBatch.Result<Optional<TestEntity>> byId = batch.get(dao, first.getId());
+    ReadBatch.Result<Optional<TestEntity>> missing = batch.get(dao, -1L);
+    ReadBatch.Result<List<TestEntity>> byIds = batch.get(dao, new long[]{first.getId(), second.getId()});
+    ReadBatch.Result<Optional<TestVersionedEntity>> versioned = batch.get(versionedDao, versionedId);
+    ReadBatch.Result<Long> count = batch.count(dao, DetachedCriteria.forClass(TestEntity.class)
+        .add(Restrictions.eq("externalId", "batch")));
+    ReadBatch.Result<List<TestEntity>> page = batch.select(dao, DetachedCriteria.forClass(TestEntity.class), 2, 1);
+    ReadBatch.Result<List<TestEntity>> query = batch.select(dao, "from TestEntity where externalId = :externalId",
+        ImmutableMap.of("externalId", "other"));
+    assertThrows(IllegalStateException.class, count::get);
+
+    batch.execute();
+    assertEquals(first.getId(), byId.get().get().getId());
+    assertFalse(missing.get().isPresent());
+    assertEquals(2, byIds.get().size());
+    assertEquals(7, versioned.get().get().getCounter());
+    assertEquals(2L, count.get());
+    assertEquals(2, page.get().size());
+    assertEquals(1, query.get().size());
+    assertThrows(IllegalStateException.class, batch::execute);
+  }
+
+  @Test
+  void testReadBatchFailure() throws Exception {
+    ReadBatch batch = new ReadBatch(uniMatrix.getSessionFactory());
+    ReadBatch.Result<Optional<TestEntity>> byId = batch.get(dao, 1L);
+    batch.select(dao, "from TestEntity where unknownProperty = 1", null);
+    assertThrows(UniMatrixException.class, batch::execute);
+    assertFalse(byId.isDone());
+  }
+
+  @Test
+  void testSnapshot() throws Exception {
+    save("snapshot");
+    for (boolean snapshot : new boolean[]{false, true, false}) {
+      ReadBatch batch = new ReadBatch(uniMatrix.getSessionFactory()).snapshot(snapshot);
+      DetachedCriteria criteria = DetachedCriteria.forClass(TestEntity.class);
+      ReadBatch.Result<Long> before = batch.count(dao, criteria);
+      // A concurrent writer commits between the two reads of the batch
+      batch.add(session -> CompletableFuture.supplyAsync(() -> {
+        try {
+          return save("concurrent");
+        } catch (UniMatrixException e) {
+          throw new UnimatrixRuntimeException(e);
+        }
+      }).join());
+      ReadBatch.Result<Long> after = batch.count(dao, DetachedCriteria.forClass(TestEntity.class));
+      batch.execute();
+      if (snapshot) {
+        assertEquals(before.get(), after.get());
+      } else {
+        assertTrue(after.get() > before.get());
+      }
+    }
+  }
+
+  @Test
+  void testSnapshotIsolationIsRestored() throws Exception {
+    ReadBatch snapshot = new ReadBatch(uniMatrix.getSessionFactory()).snapshot(true);
+    ReadBatch.Result<Integer> inSnapshot = snapshot.add(session -> session.doReturningWork(
+        Connection::getTransactionIsolation));
+    snapshot.execute();
+    assertEquals(Connection.TRANSACTION_REPEATABLE_READ, inSnapshot.get());
+
+    ReadBatch plain = new ReadBatch(uniMatrix.getSessionFactory());
+    ReadBatch.Result<Integer> afterSnapshot = plain.add(session -> session.doReturningWork(
+        Connection::getTransactionIsolation));
+    plain.execute();
+    assertEquals(Connection.TRANSACTION_READ_COMMITTED, afterSnapshot.get());
+  }
+}
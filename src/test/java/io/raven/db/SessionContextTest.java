@@ -0,0 +1,159 @@
+package io.raven.db;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.google.common.collect.Lists;
+import io.raven.db.entity.TestEntity;
+import io.raven.db.entity.TestRelatedEntity;
+import io.raven.db.entity.TestVersionedEntity;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.hibernate.HibernateException;
+import org.hibernate.SessionFactory;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+public class SessionContextTest {
+
+  private static final int TASKS = 2000;
+  private static final int COUNTERS = 100;
+
+  private UniMatrix uniMatrix;
+
+  @BeforeEach
+  void setup() {
+    UniMatrixConfig uniMatrixConfig = UniMatrixConfig.builder()
+        .createSchema(true)
+        .driverClass("org.h2.Driver")
+        .dialect("org.hibernate.dialect.H2Dialect")
+        .database("db_test")
+        .url("jdbc:h2:mem:db_session_context_test")
+        .maxPoolSize(4)
+        .sessionContext(TransactionManager.SessionContext.EXPLICIT)
+        .build();
+    uniMatrix = UniMatrix.builder()
+        .uniMatrixConfig(uniMatrixConfig)
+        .entities(Lists.newArrayList(TestEntity.class, TestRelatedEntity.class, TestVersionedEntity.class))
+        .build();
+  }
+
+  @AfterEach
+  void teardown() {
+    uniMatrix.close();
+  }
+
+  /**
+   * Virtual threads when the runtime has them, otherwise a large platform pool
+   */
+  private static ExecutorService manyThreads() {
+    try {
+      return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+    } catch (ReflectiveOperationException e) {
+      return Executors.newFixedThreadPool(500);
+    }
+  }
+
+  @Test
+  void testExplicitContextDoesNotBindSession() throws Exception {
+    SessionFactory sessionFactory = uniMatrix.getSessionFactory();
+    EntityDao<TestEntity> dao = new EntityDao<>(sessionFactory, TestEntity.class);
+    TestEntity saved = dao.save(TestEntity.builder().externalId("ext").text("text").build()).get();
+    UniMatrixException exception = assertThrows(UniMatrixException.class, () -> dao.get(saved.getId(), entity -> {
+      sessionFactory.getCurrentSession();
+      return entity;
+    }));
+    assertTrue(exception.getCause() instanceof HibernateException);
+    EntityDao.TransactionContext<TestEntity> context = dao.getTransactionContext(saved.getId());
+    TestEntity result = context
+        .mutate(parent -> {
+          assertThrows(HibernateException.class, sessionFactory::getCurrentSession);
+          assertTrue(context.getSession().contains(parent));
+          parent.setText("updated");
+        })
+        .savepoint(parent -> {
+          context.getSession().flush();
+          return null;
+        })
+        .execute();
+    assertEquals("updated", result.getText());
+    assertEquals("updated", dao.get(saved.getId()).get().getText());
+  }
+
+  @Test
+  void testConcurrentTasksWithBoundedPool() throws Exception {
+    SessionFactory sessionFactory = uniMatrix.getSessionFactory();
+    EntityDao<TestEntity> dao = new EntityDao<>(sessionFactory, TestEntity.class);
+    EntityDao<TestVersionedEntity> versionedDao = new EntityDao<>(sessionFactory, TestVersionedEntity.class);
+    List<TestVersionedEntity> counters = new ArrayList<>();
+    for (int i = 0; i < COUNTERS; i++) {
+      counters.add(TestVersionedEntity.builder().build());
+    }
+    long[] counterIds = versionedDao.save(counters).stream().mapToLong(TestVersionedEntity::getId).toArray();
+    RetryPolicy retryPolicy = RetryPolicy.builder().maxAttempts(1000).initialBackoff(1).maxBackoff(20).build();
+    ExecutorService executor = manyThreads();
+    ExecutorService hopExecutor = Executors.newFixedThreadPool(8);
+    try {
+      List<CompletableFuture<TestEntity>> futures = new ArrayList<>();
+      for (int i = 0; i < TASKS; i++) {
+        int task = i;
+        // Every stage runs on a different thread than the one before it
+        futures.add(CompletableFuture
+            .supplyAsync(() -> call(() -> dao.save(TestEntity.builder()
+                .externalId("ext-" + task)
+                .text("text")
+                .amount(BigDecimal.ZERO)
+                .build()).get()), executor)
+            .thenApplyAsync(saved -> call(() -> {
+              assertTrue(dao.update(saved.getId(), entity -> {
+                entity.ifPresent(e -> e.setText("updated-" + task));
+                return entity;
+              }));
+              assertTrue(versionedDao.updateOptimistic(counterIds[task % COUNTERS], entity -> {
+                entity.ifPresent(e -> e.setCounter(e.getCounter() + 1));
+                return entity;
+              }, retryPolicy));
+              return saved;
+            }), hopExecutor)
+            .thenApplyAsync(saved -> dao.getTransactionContext(saved.getId())
+                .mutate(parent -> parent.setAmount(parent.getAmount().add(BigDecimal.ONE)))
+                .execute(), executor)
+            .thenApplyAsync(saved -> call(() -> dao.get(saved.getId()).get()), hopExecutor));
+      }
+      for (int i = 0; i < TASKS; i++) {
+        TestEntity result = futures.get(i).get(5, TimeUnit.MINUTES);
+        assertEquals("updated-" + i, result.getText());
+        assertEquals(0, BigDecimal.ONE.compareTo(result.getAmount()));
+      }
+    } finally {
+      executor.shutdown();
+      hopExecutor.shutdown();
+    }
+    for (long counterId : counterIds) {
+      TestVersionedEntity counter = versionedDao.get(counterId).get();
+      assertEquals(TASKS / COUNTERS, counter.getCounter());
+      assertEquals(TASKS / COUNTERS, counter.getVersion());
+    }
+  }
+
+  private static <T> T call(DaoCall<T> call) {
+    try {
+      return call.call();
+    } catch (UniMatrixException e) {
+      throw new CompletionException(e);
+    }
+  }
+
+  @FunctionalInterface
+  private interface DaoCall<T> {
+    T call() throws UniMatrixException;
+  }
+}
@@ -7,6 +7,7 @@ import static org.junit.jupiter.api.Assertions.assertThrows;
 import com.google.common.collect.Lists;
 import io.raven.db.entity.TestEntity;
 import io.raven.db.entity.TestRelatedEntity;
+import org.hibernate.HibernateException;
 import org.hibernate.resource.transaction.spi.TransactionStatus;
 import org.junit.jupiter.api.Test;
 
@@ -98,5 +99,140 @@ public class TransactionManagerTest {
     assertThrows(Exception.class, tm::afterEnd);
   }
 
+  @Test
+  void transactionDeadlineTest() {
+    UniMatrixConfig uniMatrixConfig = UniMatrixConfig.builder()
+        .createSchema(true)
+        .driverClass("org.h2.Driver")
+        .dialect("org.hibernate.dialect.H2Dialect")
+        .database("db_test")
+        .url("jdbc:h2:mem:db_deadline_test")
+        .build();
+    var uniMatrix = UniMatrix.builder()
+        .uniMatrixConfig(uniMatrixConfig)
+        .entities(Lists.newArrayList(TestEntity.class, TestRelatedEntity.class))
+        .build();
+    var tm = TransactionManager.newTransaction()
+        .readOnly(true)
+        .timeout(200)
+        .sessionFactory(uniMatrix.getSessionFactory()).build();
+    assertThrows(UniMatrixException.class, () -> tm.execute(id -> {
+      try {
+        Thread.sleep(300);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      return tm.getSession().get(TestEntity.class, id);
+    }, 1L));
+    assertNull(tm.getSession());
+    uniMatrix.close();
+  }
+
+  @Test
+  void queryTimeoutTest() {
+    UniMatrixConfig uniMatrixConfig = UniMatrixConfig.builder()
+        .createSchema(true)
+        .driverClass("org.h2.Driver")
+        .dialect("org.hibernate.dialect.H2Dialect")
+        .database("db_test")
+        .url("jdbc:h2:mem:db_query_timeout_test")
+        .queryTimeout(1000)
+        .build();
+    var uniMatrix = UniMatrix.builder()
+        .uniMatrixConfig(uniMatrixConfig)
+        .entities(Lists.newArrayList(TestEntity.class, TestRelatedEntity.class))
+        .build();
+    var tm = TransactionManager.newTransaction()
+        .readOnly(true)
+        .sessionFactory(uniMatrix.getSessionFactory()).build();
+    assertThrows(UniMatrixException.class, () -> tm.execute(sql -> tm.getSession()
+        .createNativeQuery(sql)
+        .getSingleResult(), "select sum(x * x) from system_range(1, 2000000000)"));
+    uniMatrix.close();
+  }
 
+  @Test
+  void executeInSessionTest() throws Exception {
+    UniMatrixConfig uniMatrixConfig = UniMatrixConfig.builder()
+        .createSchema(true)
+        .driverClass("org.h2.Driver")
+        .dialect("org.hibernate.dialect.H2Dialect")
+        .database("db_test")
+        .url("jdbc:h2:mem:db_execute_in_session_test")
+        .build();
+    var uniMatrix = UniMatrix.builder()
+        .uniMatrixConfig(uniMatrixConfig)
+        .entities(Lists.newArrayList(TestEntity.class, TestRelatedEntity.class))
+        .build();
+    var sessionFactory = uniMatrix.getSessionFactory();
+    var tm = new TransactionManager(sessionFactory, true);
+    assertNull(tm.executeInSession((session, id) -> {
+      assertThrows(HibernateException.class, sessionFactory::getCurrentSession);
+      return session.get(TestEntity.class, id);
+    }, 1L));
+    assertNull(tm.getSession());
+    assertThrows(UniMatrixException.class, () -> tm.executeInSession((session, id) -> {
+      throw new IllegalStateException("failed");
+    }, 1L));
+    assertNull(tm.getSession());
+    uniMatrix.close();
+  }
+
+  @Test
+  void handlerModeTest() throws Exception {
+    UniMatrixConfig uniMatrixConfig = UniMatrixConfig.builder()
+        .createSchema(true)
+        .driverClass("org.h2.Driver")
+        .dialect("org.hibernate.dialect.H2Dialect")
+        .database("db_test")
+        .url("jdbc:h2:mem:db_handler_mode_test")
+        .maxPoolSize(1)
+        .connectionTimeout(500)
+        .build();
+    var uniMatrix = UniMatrix.builder()
+        .uniMatrixConfig(uniMatrixConfig)
+        .entities(Lists.newArrayList(TestEntity.class, TestRelatedEntity.class))
+        .build();
+    var sessionFactory = uniMatrix.getSessionFactory();
+    var dao = new EntityDao<>(sessionFactory, TestEntity.class);
+    long id = dao.save(TestEntity.builder().externalId("ext").text("text").build()).get().getId();
+
+    var tm = TransactionManager.newTransaction()
+        .readOnly(true)
+        .handlerMode(TransactionManager.HandlerMode.AFTER_RELEASE)
+        .sessionFactory(sessionFactory).build();
+    TestEntity entity = tm.executeInSession((session, key) -> session.get(TestEntity.class, key), id, e -> {
+      assertNull(tm.getSession());
+      return e;
+    });
+    assertEquals("text", entity.getText());
+    assertEquals("text", tm.execute(key -> sessionFactory.getCurrentSession().get(TestEntity.class, key), id,
+        e -> {
+          assertNull(tm.getSession());
+          return e;
+        }).getText());
+    assertEquals("text", tm.execute(key -> sessionFactory.getCurrentSession().get(TestEntity.class, key), id)
+        .getText());
+
+    // The only pooled connection is free while the handler runs, so the handler can use it
+    var releasing = dao.withHandlerMode(TransactionManager.HandlerMode.AFTER_RELEASE);
+    assertEquals("text", releasing.get(id, e -> {
+      try {
+        return dao.get(id);
+      } catch (UniMatrixException ex) {
+        throw new UnimatrixRuntimeException(ex);
+      }
+    }).get().getText());
+    assertThrows(UniMatrixException.class, () -> dao.get(id, e -> {
+      try {
+        return dao.get(id);
+      } catch (UniMatrixException ex) {
+        throw new UnimatrixRuntimeException(ex);
+      }
+    }));
+    assertThrows(UniMatrixException.class, () -> releasing.get(id, e -> {
+      throw new IllegalStateException("handler failed");
+    }));
+    uniMatrix.close();
+  }
 }
@@ -0,0 +1,173 @@
+package io.raven.db;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.google.common.collect.Lists;
+import io.raven.db.entity.TestEntity;
+import io.raven.db.entity.TestRelatedEntity;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import org.hibernate.engine.spi.SessionImplementor;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+public class TransactionMonitorTest {
+
+  private UniMatrix uniMatrix;
+
+  private UniMatrix uniMatrix(int statementBudget, TransactionMonitor.BudgetAction action) {
+    UniMatrixConfig uniMatrixConfig = UniMatrixConfig.builder()
+        .createSchema(true)
+        .driverClass("org.h2.Driver")
+        .dialect("org.hibernate.dialect.H2Dialect")
+        .database("db_test")
+        .url("jdbc:h2:mem:db_monitor_test")
+        .monitorTransactions(true)
+        .statementBudget(statementBudget)
+        .statementBudgetAction(action)
+        .repeatedStatementThreshold(3)
+        .build();
+    uniMatrix = UniMatrix.builder()
+        .uniMatrixConfig(uniMatrixConfig)
+        .entities(Lists.newArrayList(TestEntity.class, TestRelatedEntity.class))
+        .build();
+    return uniMatrix;
+  }
+
+  @AfterEach
+  void teardown() {
+    if (uniMatrix != null) {
+      uniMatrix.close();
+    }
+  }
+
+  private List<Long> saveEntities(EntityDao<TestEntity> dao, int count) throws UniMatrixException {
+    List<TestEntity> entities = IntStream.range(0, count)
+        .mapToObj(i -> TestEntity.builder()
+            .externalId("Monitor")
+            .text("Some Text " + i)
+            .build())
+        .collect(Collectors.toList());
+    return dao.save(entities).stream().map(TestEntity::getId).collect(Collectors.toList());
+  }
+
+  @Test
+  void testRepeatedStatementsAreFlagged() throws Exception {
+    var sessionFactory = uniMatrix(0, TransactionMonitor.BudgetAction.LOG).getSessionFactory();
+    List<Long> ids = saveEntities(new EntityDao<>(sessionFactory, TestEntity.class), 4);
+    var tm = TransactionManager.newTransaction()
+        .readOnly(true)
+        .sessionFactory(sessionFactory)
+        .build();
+    tm.execute(keys -> {
+      keys.forEach(id -> tm.getSession().get(TestEntity.class, id));
+      return null;
+    }, ids);
+    TransactionMonitor monitor = tm.getMonitor();
+    assertNotNull(monitor);
+    assertEquals(4, monitor.getStatementCount());
+    assertEquals(4, monitor.getEntityLoadCount());
+    assertEquals(0, monitor.getCollectionLoadCount());
+    assertEquals(1, monitor.getRepeatedStatements().size());
+    assertEquals(4, monitor.getRepeatedStatements().values().iterator().next());
+  }
+
+  @Test
+  void testStatementBudgetLog() throws Exception {
+    var sessionFactory = uniMatrix(2, TransactionMonitor.BudgetAction.LOG).getSessionFactory();
+    List<Long> ids = saveEntities(new EntityDao<>(sessionFactory, TestEntity.class), 3);
+    var tm = TransactionManager.newTransaction()
+        .readOnly(true)
+        .sessionFactory(sessionFactory)
+        .build();
+    tm.execute(keys -> {
+      keys.forEach(id -> tm.getSession().get(TestEntity.class, id));
+      return null;
+    }, ids);
+    assertTrue(tm.getMonitor().isBudgetExceeded());
+  }
+
+  @Test
+  void testStatementBudgetFail() throws Exception {
+    var sessionFactory = uniMatrix(0, TransactionMonitor.BudgetAction.FAIL).getSessionFactory();
+    List<Long> ids = saveEntities(new EntityDao<>(sessionFactory, TestEntity.class), 3);
+    var tm = TransactionManager.newTransaction()
+        .readOnly(true)
+        .statementBudget(2)
+        .sessionFactory(sessionFactory)
+        .build();
+    assertThrows(UniMatrixException.class, () -> tm.execute(keys -> {
+      keys.forEach(id -> tm.getSession().get(TestEntity.class, id));
+      return null;
+    }, ids));
+    assertTrue(tm.getMonitor().isBudgetExceeded());
+  }
+
+  @Test
+  void testDeferredUpdatesFlushAsOneBatch() throws Exception {
+    var sessionFactory = uniMatrix(0, TransactionMonitor.BudgetAction.LOG).getSessionFactory();
+    EntityDao<TestEntity> dao = new EntityDao<>(sessionFactory, TestEntity.class);
+    List<Long> ids = saveEntities(dao, 6);
+    // Lock of the parent, one load per child, then all updates in one batch, in both update modes
+    assertEquals(1 + 5 + 1, deferredUpdateStatements(dao, dao, ids));
+    assertEquals(1 + 5 + 1, deferredUpdateStatements(dao, dao.withUpdateMode(EntityDao.UpdateMode.DIFF), ids));
+    ids.subList(1, ids.size()).forEach(id -> {
+      try {
+        assertEquals("Deferred DIFF", dao.get(id).get().getText());
+      } catch (UniMatrixException e) {
+        throw new UnimatrixRuntimeException(e);
+      }
+    });
+  }
+
+  private int deferredUpdateStatements(EntityDao<TestEntity> dao, EntityDao<TestEntity> childDao, List<Long> ids)
+      throws UniMatrixException {
+    AtomicReference<TransactionMonitor> monitor = new AtomicReference<>();
+    EntityDao.TransactionContext<TestEntity> context = dao.getTransactionContext(ids.get(0))
+        .deferWrites(true)
+        .mutate(parent -> parent.setText("Deferred parent"))
+        .applyInSession((session, parent) ->
+            monitor.set((TransactionMonitor) session.unwrap(SessionImplementor.class).getInterceptor()));
+    for (long id : ids.subList(1, ids.size())) {
+      context.update(childDao, id, child -> {
+        child.ifPresent(c -> c.setText("Deferred " + childDao.getUpdateMode()));
+        return child;
+      });
+    }
+    context.execute();
+    return monitor.get().getStatementCount();
+  }
+
+  @Test
+  void testMonitorDisabledByDefault() throws Exception {
+    UniMatrixConfig uniMatrixConfig = UniMatrixConfig.builder()
+        .createSchema(true)
+        .driverClass("org.h2.Driver")
+        .dialect("org.hibernate.dialect.H2Dialect")
+        .database("db_test")
+        .url("jdbc:h2:mem:db_monitor_test")
+        .build();
+    uniMatrix = UniMatrix.builder()
+        .uniMatrixConfig(uniMatrixConfig)
+        .entities(Lists.newArrayList(TestEntity.class, TestRelatedEntity.class))
+        .build();
+    var tm = TransactionManager.newTransaction()
+        .readOnly(true)
+        .sessionFactory(uniMatrix.getSessionFactory())
+        .build();
+    tm.execute(id -> tm.getSession().get(TestEntity.class, id), 1L);
+    assertNull(tm.getMonitor());
+  }
+
+  @Test
+  void testStatementShape() {
+    assertEquals("select * from t where a = ? and b = ? and c in (?)",
+        TransactionMonitor.shapeOf("select *  from t where a = 'x''y' and b = 42 and c in (?, ?, ?)"));
+  }
+}
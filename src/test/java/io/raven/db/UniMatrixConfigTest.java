@@ -7,6 +7,7 @@ import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertNotEquals;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
 import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 public class UniMatrixConfigTest {
 
@@ -28,6 +29,11 @@ public class UniMatrixConfigTest {
     assertEquals(35000, factory.getIdleTimeout());
     assertEquals(45000, factory.getMaxAge());
     assertEquals("SELECT 1;", factory.getTestQuery());
+    assertEquals(30000, factory.getConnectionTimeout());
+    assertEquals(0, factory.getQueryTimeout());
+    assertEquals(0, factory.getTransactionTimeout());
+    assertEquals(5, factory.getOptimisticRetry().getMaxAttempts());
+    assertTrue(factory.getProperties().isEmpty());
     assertNull(factory.getPassword());
     assertNotNull(factory.toString());
     assertNotEquals(0, factory.hashCode());
@@ -46,6 +52,10 @@ public class UniMatrixConfigTest {
     assertEquals(35000, factory.getIdleTimeout());
     assertEquals(45000, factory.getMaxAge());
     assertEquals("SELECT 1;", factory.getTestQuery());
+    assertEquals(30000, factory.getConnectionTimeout());
+    assertEquals(0, factory.getQueryTimeout());
+    assertEquals(0, factory.getTransactionTimeout());
+    assertEquals(5, factory.getOptimisticRetry().getMaxAttempts());
     assertNull(factory.getPassword());
     assertNotNull(factory.toString());
     assertNotEquals(0, factory.hashCode());
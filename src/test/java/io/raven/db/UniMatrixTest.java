@@ -2,13 +2,22 @@ package io.raven.db;
 
 import com.google.common.collect.Lists;
 import io.raven.db.entity.TestEntity;
+import io.raven.db.entity.TestPropertyAccessEntity;
 import io.raven.db.entity.TestRelatedEntity;
 import org.hibernate.SessionFactory;
+import org.hibernate.engine.jdbc.spi.SqlStatementLogger;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
 import org.junit.jupiter.api.Test;
 
+import java.lang.reflect.Proxy;
+import java.sql.Statement;
 import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
 public class UniMatrixTest {
@@ -48,6 +57,26 @@ public class UniMatrixTest {
     uniMatrix.close();
   }
 
+  @Test
+  void propertyAccessEntityTest() {
+    UniMatrixConfig uniMatrixConfig = UniMatrixConfig.builder()
+        .createSchema(true)
+        .driverClass("org.h2.Driver")
+        .dialect("org.hibernate.dialect.H2Dialect")
+        .database("db_test")
+        .url("jdbc:h2:mem:db_property_access_test")
+        .build();
+    var uniMatrix = UniMatrix.builder()
+        .uniMatrixConfig(uniMatrixConfig)
+        .entities(Lists.newArrayList(TestEntity.class, TestRelatedEntity.class, TestPropertyAccessEntity.class))
+        .build();
+    // Entities without a field level id bootstrap, only a dao for them needs the field
+    assertTrue(uniMatrix.getSessionFactory().isOpen());
+    assertThrows(IllegalArgumentException.class,
+        () -> new EntityDao<>(uniMatrix.getSessionFactory(), TestPropertyAccessEntity.class));
+    uniMatrix.close();
+  }
+
   @Test
   void closeTest() {
     UniMatrixConfig uniMatrixConfig = UniMatrixConfig.builder()
@@ -69,4 +98,40 @@ public class UniMatrixTest {
     uniMatrix.close();
     assertTrue(sessionFactory.isClosed());
   }
+
+  @Test
+  void slowQueryLoggerTest() {
+    UniMatrixConfig uniMatrixConfig = UniMatrixConfig.builder()
+        .createSchema(true)
+        .driverClass("org.h2.Driver")
+        .dialect("org.hibernate.dialect.H2Dialect")
+        .database("db_test")
+        .url("jdbc:h2:mem:db_slow_query_test")
+        .slowQueryThreshold(50)
+        .build();
+    var uniMatrix = UniMatrix.builder()
+        .uniMatrixConfig(uniMatrixConfig)
+        .entities(Lists.newArrayList(TestEntity.class, TestRelatedEntity.class))
+        .build();
+    SqlStatementLogger logger = uniMatrix.getSessionFactory()
+        .unwrap(SessionFactoryImplementor.class)
+        .getJdbcServices()
+        .getSqlStatementLogger();
+    assertTrue(logger instanceof SlowQueryLogger);
+    assertEquals(50, logger.getLogSlowQuery());
+    AtomicInteger rendered = new AtomicInteger();
+    Statement statement = (Statement) Proxy.newProxyInstance(getClass().getClassLoader(),
+        new Class<?>[]{Statement.class}, (proxy, method, args) -> {
+          if (method.getName().equals("toString")) {
+            rendered.incrementAndGet();
+            return "select 1";
+          }
+          return null;
+        });
+    logger.logSlowQuery(statement, System.nanoTime());
+    assertEquals(0, rendered.get());
+    logger.logSlowQuery(statement, System.nanoTime() - TimeUnit.SECONDS.toNanos(1));
+    assertEquals(1, rendered.get());
+    uniMatrix.close();
+  }
 }
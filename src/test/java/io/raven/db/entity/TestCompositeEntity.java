@@ -0,0 +1,34 @@
+package io.raven.db.entity;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import lombok.ToString;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.IdClass;
+import javax.persistence.Table;
+
+@Entity
+@Table(name = "test_composite_entity")
+@IdClass(TestCompositeKey.class)
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+@ToString
+public class TestCompositeEntity {
+
+  @Id
+  private String tenant;
+
+  @Id
+  private long number;
+
+  @Column(name = "text", nullable = false)
+  private String text;
+
+}
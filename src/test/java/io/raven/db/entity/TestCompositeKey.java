@@ -0,0 +1,18 @@
+package io.raven.db.entity;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.io.Serializable;
+
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class TestCompositeKey implements Serializable {
+
+  private String tenant;
+
+  private long number;
+
+}
@@ -0,0 +1,34 @@
+package io.raven.db.entity;
+
+import io.raven.db.UniMatrixIdentifierGenerator;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import lombok.ToString;
+import org.hibernate.annotations.GenericGenerator;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.GeneratedValue;
+import javax.persistence.Id;
+import javax.persistence.Table;
+
+@Entity
+@Table(name = "test_generated_id_entity")
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+@ToString
+public class TestGeneratedIdEntity {
+
+  @Id
+  @GeneratedValue(generator = "unimatrix")
+  @GenericGenerator(name = "unimatrix", strategy = UniMatrixIdentifierGenerator.STRATEGY)
+  private long id;
+
+  @Column(name = "text", nullable = false)
+  private String text;
+
+}
@@ -0,0 +1,33 @@
+package io.raven.db.entity;
+
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.GeneratedValue;
+import javax.persistence.GenerationType;
+import javax.persistence.Id;
+import javax.persistence.Table;
+
+@Entity
+@Table(name = "test_property_access_entity")
+@Setter
+@NoArgsConstructor
+public class TestPropertyAccessEntity {
+
+  private long id;
+
+  private String text;
+
+  @Id
+  @GeneratedValue(strategy = GenerationType.IDENTITY)
+  public long getId() {
+    return id;
+  }
+
+  @Column(name = "text")
+  public String getText() {
+    return text;
+  }
+}
@@ -0,0 +1,32 @@
+package io.raven.db.entity;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import lombok.ToString;
+import org.hibernate.annotations.Type;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.Table;
+import java.util.UUID;
+
+@Entity
+@Table(name = "test_uuid_entity")
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+@ToString
+public class TestUuidEntity {
+
+  @Id
+  @Type(type = "uuid-char")
+  private UUID id;
+
+  @Column(name = "text", nullable = false)
+  private String text;
+
+}
@@ -0,0 +1,39 @@
+package io.raven.db.entity;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import lombok.ToString;
+import org.hibernate.annotations.DynamicUpdate;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.GeneratedValue;
+import javax.persistence.GenerationType;
+import javax.persistence.Id;
+import javax.persistence.Table;
+import javax.persistence.Version;
+
+@Entity
+@Table(name = "test_versioned_entity")
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+@ToString
+@DynamicUpdate
+public class TestVersionedEntity {
+
+  @Id
+  @GeneratedValue(strategy = GenerationType.IDENTITY)
+  private long id;
+
+  @Column(name = "counter", nullable = false)
+  private int counter;
+
+  @Version
+  @Column(name = "version", nullable = false)
+  private int version;
+
+}